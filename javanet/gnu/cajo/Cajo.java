@@ -2,16 +2,22 @@ package gnu.cajo;
 
 import gnu.cajo.invoke.Remote;
 import gnu.cajo.invoke.Invoke;
+import gnu.cajo.utils.Announcer;
 import gnu.cajo.utils.Multicast;
 import gnu.cajo.utils.ItemServer;
+import gnu.cajo.utils.extra.Gossip;
 import gnu.cajo.utils.extra.TransparentItemProxy;
 import java.lang.reflect.Method;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.Vector;
+import java.util.WeakHashMap;
 import java.util.ArrayList;
 import java.rmi.RemoteException;
+import java.rmi.ConnectException;
 
 /*
  * A Generic Standard Interface to the cajo distributed computing library.
@@ -46,21 +52,202 @@ import java.rmi.RemoteException;
 public final class Cajo implements Grail {
    private final int ttl;
    private final Multicast multicast;
-   private final Vector items = new Vector();
+   private final Items items = new Items();
    private final Registrar registrar = new Registrar(items);
+   private final Remote self;
+   private final HashMap lookups = new HashMap();
+   private final HashSet probing = new HashSet(); // asked, not yet answered
+   private final Object posts = new Object();
+   private Object tier[];
+   private static final HashSet COMMON = new HashSet();
+   static { // the coarse hashes of the methods common to all objects
+      Method methods[] = Object.class.getMethods();
+      for (int i = 0; i < methods.length; i++)
+         COMMON.add(new Long(coarse(methods[i].getName(),
+            methods[i].getParameterTypes().length)));
+   }
+   /**
+    * The time in milliseconds for which objects registered by lower tier
+    * registrars are kept, if this registrar is part of an upper tier. The
+    * lower tier registrars renew them at a third of this time. By default
+    * it is three minutes.
+    */
+   public long tierLease = 180000L;
+   /**
+    * The membership detector of this registrar, it exchanges heartbeats
+    * with the other registrars found. When one is declared dead, the
+    * objects it registered are removed; and subsequent invocations on
+    * proxies to them fail immediately, rather than waiting for a network
+    * timeout. Its public fields may be used to adjust its sensitivity.
+    */
+   public final Gossip gossip;
+   /**
+    * The announcer of this registrar. It announces the registrar once a
+    * minute on average, first at a random time within a minute of starting,
+    * and less often while other registrars are heard announcing; and on
+    * each export, but no more than once a second, objects exported in quick
+    * succession are announced together. Its public fields may be used to
+    * adjust these times.
+    */
+   public final Announcer announcer;
+   /**
+    * The minimum time in milliseconds between exchanges with a registrar,
+    * prompted by its announcements. Announcements received in the meantime
+    * are combined into a single exchange, at the end of the time. By
+    * default it is 10 seconds.
+    */
+   public long exchangeInterval = 10000L;
+   /**
+    * The time in milliseconds a lookup will wait for any remote object to
+    * report if it supports the method set, before it is left out of the
+    * result. By default it is 5 seconds.
+    */
+   public long lookupTimeout = 5000L;
+   /**
+    * The time in milliseconds the results of a lookup remain valid.
+    * Objects registered since, will be checked on the next lookup, without
+    * checking the others again. By default it is 1 minute.
+    */
+   public long lookupCache = 60000L;
+   /**
+    * This internal use only helper class holds the results of a lookup,
+    * for a method set interface.
+    */
+   private static final class Lookup {
+      private final HashSet probed  = new HashSet();
+      private final HashSet matched = new HashSet();
+      private final long time = System.currentTimeMillis();
+      private int pending;
+   }
+   /**
+    * This internal use only helper class holds the registered object
+    * references. Along with the ordered collection, it keeps a hashed
+    * membership set, and the version at which each reference was added;
+    * each addition increments the version of the registry. It also
+    * remembers the references removed, due to the failure of their owner,
+    * until they are registered again, or their owner recovers.
+    */
+   private static final class Items extends Vector {
+      private static final long serialVersionUID = 1L;
+      private final HashMap versions = new HashMap();
+      private transient WeakHashMap failed;
+      private long version;
+      private synchronized boolean put(Object item) {
+         if (failed != null) failed.remove(item); // it is back
+         if (versions.containsKey(item)) return false;
+         versions.put(item, new Long(++version));
+         addElement(item);
+         return true;
+      }
+      public synchronized boolean removeElement(Object item) {
+         versions.remove(item);
+         return super.removeElement(item);
+      }
+      private synchronized void drop(Object owner) {
+         if (failed == null) failed = new WeakHashMap();
+         for (int i = size() - 1; i >= 0; i--) {
+            Object item = elementAt(i);
+            if (item instanceof Entry && owner.equals(((Entry)item).owner)) {
+               removeElementAt(i);
+               versions.remove(item);
+               failed.put(item, null);
+            }
+         }
+      }
+      private synchronized void revive(Object owner) {
+         if (failed == null) return;
+         for (Iterator i = failed.keySet().iterator(); i.hasNext(); ) {
+            Object item = i.next();
+            if (item instanceof Entry && owner.equals(((Entry)item).owner))
+               i.remove();
+         }
+      }
+      private synchronized boolean failed(Object item) {
+         return failed != null && failed.containsKey(item);
+      }
+      private synchronized Vector since(long version) {
+         Vector delta = new Vector();
+         for (int i = 0; i < size(); i++)
+            if (((Long)versions.get(elementAt(i))).longValue() > version)
+               delta.add(elementAt(i));
+         return delta;
+      }
+      private synchronized Vector refs() { // as earlier registrars hold them
+         Vector refs = new Vector();
+         for (int i = 0; i < size(); i++) refs.add(elementAt(i) instanceof
+            Entry ? ((Entry)elementAt(i)).ref : elementAt(i));
+         return refs;
+      }
+   }
    /**
     * This internal use only helper class maintains a registry of exported
     * objects. It uses UDP multicasts to find other instances of registries,
-    * and shares references between them.
+    * and shares references between them. Each registrar remembers the
+    * version of every peer registry it has last received, so only the
+    * references added since are exchanged.
     */
    private static final class Registrar {
-      private final Vector items;
-      private Registrar(Vector items) { this.items = items; }
+      private final Items items;
+      private final HashMap peers = new HashMap();
+      private final Items shard = new Items();
+      private final HashMap expiries = new HashMap();
+      private final HashMap exchanged = new HashMap(); // last, or next, time
+      private Remote self;
+      private Gossip gossip;
+      private Cajo cajo;
+      private Registrar(Items items) { this.items = items; }
+      /**
+       * This method exchanges registry differences with a remote registrar.
+       * It requests the references the peer has added since the last
+       * exchange, and invites the peer to do the same. Registrars of earlier
+       * versions are sent, and requested, their whole registries.
+       */
+      private void exchange(Object peer) throws Exception {
+         if (self != null && self.equals(peer)) return; // our own
+         try {
+            pull(peer);
+            if (self != null) Remote.invoke(peer, "sync",
+               new Object[] { self, new Long(items.version) });
+            if (gossip != null) gossip.add(peer);
+         } catch(NoSuchMethodException x) { // an earlier registrar
+            if (items.size() > 0)
+               Remote.invoke(peer, "register", items.refs());
+            register((Vector)Remote.invoke(peer, "request", null));
+         } catch(IOException x) { // it is no longer reachable
+            synchronized(peers) { peers.remove(peer); }
+            throw x;
+         }
+      }
+      /**
+       * This method forgets the registry version of a peer, so that all of
+       * its references will be requested, should it be heard from again.
+       */
+      private void forget(Object peer) {
+         synchronized(peers) { peers.remove(peer); }
+         synchronized(exchanged) { exchanged.remove(peer); }
+      }
+      /**
+       * This method requests the references a peer has added since its
+       * last known version.
+       */
+      private void pull(Object peer) throws Exception {
+         Long since;
+         synchronized(peers) { since = (Long)peers.get(peer); }
+         Object delta[] = (Object[])Remote.invoke(peer, "request",
+            since != null ? since : new Long(0));
+         register((Vector)delta[1]);
+         synchronized(peers) {
+            since = (Long)peers.get(peer);
+            if (since == null ||
+               since.longValue() < ((Long)delta[0]).longValue())
+               peers.put(peer, delta[0]);
+         }
+      }
       /**
        * This method is called either when a Cajo instance starts up, or
-       * exports an object reference. All operating servers will request the
-       * collection of references owned by the remote JVM, and
-       * correspondingly send a copy of their registries.
+       * exports object references. All operating servers will request the
+       * references added by the remote JVM since they last heard from it,
+       * and invite it to correspondingly request theirs.
        * @param multicast A reference to the announcing JVM
        * @return null To keep the multicast object listening
        * @throws Exception if the request for remote references failed, or the
@@ -68,11 +255,50 @@ public final class Cajo implements Grail {
        * application specific reasons.
        */
       public Object multicast(Multicast multicast) throws Exception {
-         if (items.size() > 0 )
-            multicast.item.invoke("register", items);
-         register((Vector)multicast.item.invoke("request", null));
+         final Object peer = multicast.getItem();
+         if (cajo != null && !peer.equals(self)) { // throttle the exchanges
+            cajo.announcer.heard();
+            long time = System.currentTimeMillis(), wait;
+            synchronized(exchanged) {
+               Long last = (Long)exchanged.get(peer);
+               if (last != null && last.longValue() > time)
+                  return null; // one is already scheduled
+               wait = last == null ? 0 :
+                  last.longValue() + cajo.exchangeInterval - time;
+               exchanged.put(peer, new Long(time + Math.max(wait, 0)));
+            }
+            if (wait > 0) { // too soon after the last one
+               final long delay = wait;
+               Thread thread = new Thread() {
+                  public void run() {
+                     try {
+                        sleep(delay);
+                        exchange(peer);
+                     } catch(Exception x) {} // it will be heard again
+                  }
+               };
+               thread.setDaemon(true);
+               thread.start();
+               return null;
+            }
+         }
+         exchange(peer);
          return null; // pass any list to announcer & keep listening
       }
+      /**
+       * This method is called by remote registrars, to announce the current
+       * version of their registry. If it is newer than the one last
+       * received, the differences will be requested.
+       * @param peer A reference to the remote registrar
+       * @param version The version of its registry
+       * @throws Exception If the request for the differences failed, for
+       * network reasons
+       */
+      public void sync(Object peer, long version) throws Exception {
+         Long known;
+         synchronized(peers) { known = (Long)peers.get(peer); }
+         if (known == null || known.longValue() < version) pull(peer);
+      }
       /**
        * This method is called either by remote JVMs to provide a copy
        * of their registry, in response to a startup or export announcement.
@@ -80,11 +306,9 @@ public final class Cajo implements Grail {
        * @param elements A collection of remote object references
        */
       public void register(Vector elements) { // include all responders
-         if (elements != null && elements.size() > 0) synchronized(items) {
+         if (elements != null)
             for (int i = 0; i < elements.size(); i++)
-               if (!(items.contains(elements.elementAt(i))))
-                  items.add(elements.elementAt(i));
-         }
+               items.put(elements.elementAt(i));
       }
       /**
        * This method allows remote JVMs to request the contents of the
@@ -93,7 +317,78 @@ public final class Cajo implements Grail {
        * @return The collection of remote object references currently
        * registered
        */
-      public Vector request() { return items; }
+      public Vector request() { return items.refs(); }
+      /**
+       * This method is called by lower tier registrars, to register the
+       * objects they export, whose shard keys are held by this registrar; or
+       * to renew their registration.
+       * @param elements A collection of registry entries
+       */
+      public void post(Vector elements) {
+         Long expiry = new Long(System.currentTimeMillis() + cajo.tierLease);
+         synchronized(shard) {
+            for (int i = 0; i < elements.size(); i++) {
+               shard.put(elements.elementAt(i));
+               expiries.put(elements.elementAt(i), expiry);
+            }
+         }
+      }
+      /**
+       * This method is called by lower tier registrars, to find the objects
+       * registered with this one, which may support a client method set.
+       * @param exact The exact signature hashes of the client methods
+       * @param coarse The name and arity hashes of the client methods
+       * @return The entries of the objects which may support the method
+       * set, the caller must check those whose digests are inconclusive
+       */
+      public Vector find(long exact[], long coarse[]) {
+         Vector found = new Vector();
+         long time = System.currentTimeMillis();
+         synchronized(shard) {
+            for (int i = shard.size() - 1; i >= 0; i--) {
+               Object element = shard.elementAt(i);
+               if (((Long)expiries.get(element)).longValue() < time) {
+                  shard.removeElementAt(i);
+                  shard.versions.remove(element);
+                  expiries.remove(element);
+               } else if (element instanceof Entry && !Boolean.FALSE.equals(
+                  ((Entry)element).supports(exact, coarse)))
+                  found.add(element);
+            }
+         }
+         return found;
+      }
+      /**
+       * This method is called by remote registrars, to exchange membership
+       * heartbeats.
+       * @param refs The references of the registrars known to the caller
+       * @param beats The latest heartbeat of each registrar
+       * @return The registrars known to this one, and their latest
+       * heartbeats
+       * @throws NoSuchMethodException If membership detection has not yet
+       * been started
+       */
+      public Object[] gossip(Object refs[], long beats[])
+         throws NoSuchMethodException {
+         if (gossip == null) throw new NoSuchMethodException("gossip");
+         return gossip.gossip(refs, beats);
+      }
+      /**
+       * This method allows remote registrars to request only the references
+       * added to the registry since a given version.
+       * @param version The version of the registry last received, or 0 for
+       * all references
+       * @return An array of two elements: the current version of the
+       * registry, as a Long, and the Vector of references added since the
+       * one provided
+       */
+      public Object[] request(long version) {
+         synchronized(items) {
+            return new Object[] {
+               new Long(items.version), items.since(version)
+            };
+         }
+      }
    };
    /**
     * This internal use only helper class scans an exported object to see if
@@ -145,6 +440,151 @@ public final class Cajo implements Grail {
          } else return Remote.invoke(target, method, args);
       }
    }
+   /**
+    * This internal use only helper class is the registry entry of an
+    * exported object. Along with the remote reference, it carries a digest
+    * of the object's method signatures, allowing most lookups to be decided
+    * locally, without asking the object.
+    */
+   private static final class Entry implements Invoke {
+      private static final long serialVersionUID = 1L;
+      private final Object ref, owner;
+      private final long digest[];
+      private transient long keys[]; // its shard keys, if exported here
+      private Entry(Object ref, long digest[], Object owner) {
+         this.ref = ref;
+         this.digest = digest;
+         this.owner = owner;
+      }
+      /**
+       * This method checks the digest for a client method set, it returns
+       * Boolean.TRUE if the object definitely supports it, Boolean.FALSE
+       * if it definitely does not, or null if it must be asked.
+       */
+      private Boolean supports(long exact[], long coarse[]) {
+         Boolean result = Boolean.TRUE;
+         for (int i = 0; i < exact.length; i++) {
+            if (Arrays.binarySearch(digest, coarse[i]) < 0)
+               return Boolean.FALSE; // no method of this name and arity
+            if (Arrays.binarySearch(digest, exact[i]) < 0) result = null;
+         }
+         return result;
+      }
+      public Object invoke(String method, Object args) throws Exception {
+         return Remote.invoke(ref, method, args);
+      }
+      public boolean equals(Object o) {
+         return o instanceof Entry && ref.equals(((Entry)o).ref);
+      }
+      public int hashCode() { return ref.hashCode(); }
+      public String toString() { return ref.toString(); }
+   }
+   /**
+    * This method computes a 64 bit FNV-1a hash of a signature string.
+    */
+   private static long hash(String s) {
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < s.length(); i++) {
+         hash ^= s.charAt(i);
+         hash *= 0x100000001b3L;
+      }
+      return hash;
+   }
+   /**
+    * This method computes the exact signature hash of a method, used to
+    * match a client method; if the client method is void, any return type
+    * will match.
+    */
+   private static long exact(String name, Class args[], Class result) {
+      StringBuffer sb = new StringBuffer(name).append('(');
+      for (int i = 0; i < args.length; i++)
+         sb.append(Remote.autobox(args[i]).getName()).append(',');
+      sb.append(')');
+      if (result != void.class) sb.append(Remote.autobox(result).getName());
+      return hash(sb.toString());
+   }
+   /**
+    * This method computes the coarse signature hash of a method, it is
+    * based only on the name of the method, and its number of arguments.
+    */
+   private static long coarse(String name, int args) {
+      return hash(name + '/' + args);
+   }
+   /**
+    * This method computes the digest of the method signatures of an object.
+    */
+   private static long[] digest(Object object) {
+      Method methods[] = object.getClass().getMethods();
+      long digest[] = new long[methods.length * 3];
+      for (int i = 0; i < methods.length; i++) {
+         Class args[] = methods[i].getParameterTypes();
+         String name = methods[i].getName();
+         digest[i * 3]     = exact(name, args, methods[i].getReturnType());
+         digest[i * 3 + 1] = exact(name, args, void.class);
+         digest[i * 3 + 2] = coarse(name, args.length);
+      }
+      Arrays.sort(digest);
+      return digest;
+   }
+   /**
+    * This method computes the shard keys of an object: the coarse hashes of
+    * its methods, other than those common to all objects.
+    */
+   private static long[] keys(Object object) {
+      Method methods[] = object.getClass().getMethods();
+      HashSet keys = new HashSet();
+      for (int i = 0; i < methods.length; i++) {
+         if (methods[i].getDeclaringClass() == Object.class) continue;
+         keys.add(new Long(coarse(methods[i].getName(),
+            methods[i].getParameterTypes().length)));
+      }
+      long result[] = new long[keys.size()];
+      Iterator i = keys.iterator();
+      for (int j = 0; j < result.length; j++)
+         result[j] = ((Long)i.next()).longValue();
+      return result;
+   }
+   /**
+    * This method selects the shard key of a client method set: the least of
+    * its coarse hashes, other than those of methods common to all objects.
+    * Every object supporting the method set is registered under it. It
+    * returns 0 if there is none.
+    */
+   private static long anchor(long coarse[]) {
+      long anchor = 0;
+      for (int i = 0; i < coarse.length; i++)
+         if (!COMMON.contains(new Long(coarse[i])) &&
+            (anchor == 0 || coarse[i] < anchor)) anchor = coarse[i];
+      return anchor;
+   }
+   /**
+    * This method selects the upper tier registrar holding a shard key.
+    */
+   private static int shard(long key, int shards) {
+      return (int)((key >>> 1) % shards);
+   }
+   /**
+    * This method registers the objects exported by this JVM with the upper
+    * tier, each with the registrars holding its shard keys.
+    */
+   private void post(Object shards[]) {
+      Vector posts[] = new Vector[shards.length];
+      Object elements[] = items.toArray();
+      for (int i = 0; i < elements.length; i++) {
+         if (!(elements[i] instanceof Entry)) continue;
+         long keys[] = ((Entry)elements[i]).keys;
+         if (keys == null) continue; // not exported here
+         for (int j = 0; j < keys.length; j++) {
+            int k = shard(keys[j], shards.length);
+            if (posts[k] == null) posts[k] = new Vector();
+            if (!posts[k].contains(elements[i])) posts[k].add(elements[i]);
+         }
+      }
+      for (int i = 0; i < shards.length; i++)
+         if (posts[i] != null) try {
+            Remote.invoke(shards[i], "post", posts[i]);
+         } catch(Exception x) {} // it will be retried
+   }
    /**
     * This internal use only helper class automatically removes unresponsive
     * server references from the internal queue.
@@ -152,8 +592,8 @@ public final class Cajo implements Grail {
    private static final class Purger implements Invoke {
       private static final long serialVersionUID = 1L;
       private final Object object;
-      private final Vector items;
-      private Purger(Object object, Vector items) {
+      private final Items items;
+      private Purger(Object object, Items items) {
          this.object = object;
          this.items = items;
       }
@@ -161,7 +601,9 @@ public final class Cajo implements Grail {
        * This method, invoked transparently when any remote server method is
        * called, monitors the progress of the invocation. If the call results
        * in a java.rmi.RemoteException, the server object reference will be
-       * deleted from the internal queue automatically. All exceptions will
+       * deleted from the internal queue automatically. If the registrar of
+       * the server object has been declared dead, the invocation fails
+       * immediately with a java.rmi.ConnectException. All exceptions will
        * be propagated out to the client.
        * @param method The name of the method to be invoked
        * @param args The arguments to be provided to the method
@@ -170,6 +612,8 @@ public final class Cajo implements Grail {
        * reasons
        */
       public Object invoke(String method, Object args) throws Exception {
+         if (items.failed(object))
+            throw new ConnectException("Object registrar has failed");
          try { return Remote.invoke(object, method, args); }
          catch(IOException x) { // if object is not responsive
             items.remove(object);
@@ -183,8 +627,8 @@ public final class Cajo implements Grail {
     * <br><i><u>Note</u>:</i> invoke gnu.cajo.invoke.Remote.config, and
     * construct a gnu.cajo.utils.CodebaseServer if needed, to configure
     * the JVM <i>before</i> invoking this constructor.
-    * @throws IOException If the startup announcement datagram packet could
-    * not be sent
+    * @throws IOException If the registrar could not be bound, or the
+    * announcement datagram socket could not be created
     */
    public Cajo() throws IOException { this(16); }
    /**
@@ -198,16 +642,34 @@ public final class Cajo implements Grail {
     * confines the announcement to the local subnet, the max value of 255
     * could theoretically traverse the entire internet (assuming no routers
     * blocked datagram packets)
-    * @throws IOException If the startup announcement datagram packet could
-    * not be sent
+    * @throws IOException If the registrar could not be bound, or the
+    * announcement datagram socket could not be created
     */
    public Cajo(int ttl) throws IOException {
       if (ttl < 0 || ttl > 255) throw new
          IllegalArgumentException(ttl + "is an invalid ttl (0 - 255)");
       this.ttl = ttl;
       multicast = new Multicast("224.0.23.162", 1198);
-      multicast.listen(registrar);
-      multicast.announce(ItemServer.bind(registrar, "registrar"), ttl);
+      multicast.listen(registrar, 4);
+      self = ItemServer.bind(registrar, "registrar");
+      gossip = new Gossip(self, new Invoke() {
+         private static final long serialVersionUID = 1L;
+         public Object invoke(String method, Object args) throws Exception {
+            if (method.equals("dead")) {
+               items.drop(args);
+               registrar.forget(args);
+            } else { // it has recovered
+               items.revive(args);
+               registrar.exchange(args);
+            }
+            return null;
+         }
+      });
+      registrar.self = self;
+      registrar.gossip = gossip;
+      registrar.cajo = this;
+      gossip.start();
+      announcer = new Announcer(multicast, "registrar", self, ttl, 60000L);
    }
    /**
     * This method makes any object's public methods, whether instance or
@@ -225,8 +687,7 @@ public final class Cajo implements Grail {
     * POJO</a> to be made remotely invocable, i.e. there is no requirement
     * for it to implement any special interfaces, nor to be derived from any
     * particular class
-    * @throws IOException If the announcement datagram packet could not be
-    * sent
+    * @throws IOException If the object could not be remoted
     */
    public void export(Object object) throws IOException {
       export(object, object);
@@ -242,24 +703,36 @@ public final class Cajo implements Grail {
     * registered each time, you generally do not want to do this. Also, if
     * you plan to use the register method, to contact remote registries
     * directly, it is <i>highly</i> advisible to export all objects
-    * <i>prior</i> to doing so.
+    * <i>prior</i> to doing so. Objects exported in quick succession are
+    * announced together, see {@link #announcer announcer}.
     * @param object The <a href=http://en.wikipedia.org/wiki/Plain_Old_Java_Object>
     * POJO</a> to be made remotely invocable, i.e. there is no requirement
     * for it to implement any special interfaces, nor to be derived from any
     * particular class
     * @param target The object on which to invoke methods, this is used when
     * object parameter is wrapped e.g. in a MonitorItem or AuditorItem
-    * @throws IOException If the announcement datagram packet could not be
-    * sent
+    * @throws IOException If the object could not be remoted
     */
    public void export(Object object, Object target) throws IOException {
-      items.add(new Remote(new Searchable(object, target)));
-      multicast.announce(registrar, ttl);
+      Entry entry = new Entry(new Remote(new Searchable(object, target)),
+         digest(object), self);
+      entry.keys = keys(object);
+      items.put(entry);
+      announcer.announce();
+      if (tier != null) synchronized(posts) { posts.notify(); }
    }
    /**
     * This method finds all remotely invocable objects, supporting the
     * specified method set. The method set is a <i>client</i> defined
-    * interface. It specifies the method signatures required.
+    * interface. It specifies the method signatures required.<p>
+    * Each registered object carries a digest of its method signatures,
+    * from which the lookup can usually be decided locally. Otherwise, the
+    * remote objects are checked concurrently, those failing to respond
+    * within the {@link #lookupTimeout lookupTimeout} are left out. The
+    * results are kept for the {@link #lookupCache lookupCache} time; during
+    * which only newly registered objects will be checked. If this registrar
+    * has joined an upper tier, see {@link #setTier setTier}, and no object
+    * registered locally supports the method set, the upper tier is asked.
     * @param methodSetInterface The interface of methods that remote objects
     * are required to support
     * @return An array of remote object references, specific to the
@@ -275,20 +748,138 @@ public final class Cajo implements Grail {
       Class returns[]  = new Class[methods.length];
       String names[]   = new String[methods.length];
       Class args[][]   = new Class[methods.length][];
+      long exact[]     = new long[methods.length];
+      long coarse[]    = new long[methods.length];
       for (int i = 0; i < methods.length; i++) {
          returns[i] = methods[i].getReturnType();
          names[i]   = methods[i].getName();
          args[i]    = methods[i].getParameterTypes();
+         exact[i]   = exact(names[i], args[i], returns[i]);
+         coarse[i]  = coarse(names[i], args[i].length);
+      }
+      final Object params = new Object[] { returns, names, args };
+      final Lookup lookup;
+      long time = System.currentTimeMillis();
+      synchronized(lookups) {
+         Lookup l = (Lookup)lookups.get(methodSetInterface);
+         if (l == null || l.time + lookupCache < time) {
+            l = new Lookup();
+            lookups.put(methodSetInterface, l);
+         }
+         lookup = l;
+      }
+      Object found[] = match(items.toArray(), lookup, exact, coarse,
+         params, time);
+      Object shards[] = tier;
+      if (found.length > 0 || shards == null) return found;
+      long anchor = anchor(coarse); // not found locally, ask the upper tier
+      if (anchor == 0) return found;
+      Vector candidates = (Vector)Remote.invoke(
+         shards[shard(anchor, shards.length)], "find",
+         new Object[] { exact, coarse });
+      return match(candidates.toArray(), lookup, exact, coarse, params, time);
+   }
+   /**
+    * This method finds the elements supporting the client method set,
+    * deciding by their digests when possible, and otherwise by asking them
+    * concurrently. An element is asked by one lookup at a time; while it
+    * has not answered, other lookups leave it out, as they would a slow
+    * one, rather than start yet another thread waiting on it.
+    */
+   private Object[] match(Object elements[], final Lookup lookup,
+      long exact[], long coarse[], final Object params, long time)
+      throws InterruptedException {
+      for (int i = 0; i < elements.length; i++) { // probe concurrently
+         final Object element = elements[i];
+         Boolean match = element instanceof Entry ?
+            ((Entry)element).supports(exact, coarse) : null;
+         synchronized(lookup) {
+            if (lookup.probed.contains(element)) continue;
+            if (match != null) { // decided by the digest
+               lookup.probed.add(element);
+               if (match.booleanValue()) lookup.matched.add(element);
+               continue;
+            }
+            synchronized(probing) { // already being asked, maybe hanging
+               if (!probing.add(element)) continue;
+            }
+            lookup.pending++;
+         }
+         Thread thread = new Thread() {
+            public void run() {
+               boolean match = false, failed = false;
+               try { match = Boolean.TRUE.equals(
+                  Remote.invoke(element, null, params));
+               } catch(Exception x) { // not responsive
+                  items.removeElement(element);
+                  failed = true;
+               }
+               synchronized(probing) { probing.remove(element); }
+               synchronized(lookup) {
+                  if (!failed) {
+                     lookup.probed.add(element);
+                     if (match) lookup.matched.add(element);
+                  }
+                  lookup.pending--;
+                  lookup.notifyAll();
+               }
+            }
+         };
+         thread.setDaemon(true);
+         thread.start();
+      }
+      ArrayList list = new ArrayList();
+      synchronized(lookup) { // slow objects are left out when time is up
+         long timeout = time + lookupTimeout - System.currentTimeMillis();
+         while(lookup.pending > 0 && timeout > 0) {
+            lookup.wait(timeout);
+            timeout = time + lookupTimeout - System.currentTimeMillis();
+         }
+         for (int i = 0; i < elements.length; i++)
+            if (lookup.matched.contains(elements[i])) list.add(elements[i]);
       }
-      Object params     = new Object[] { returns, names, args };
-      ArrayList list    = new ArrayList();
-      Object elements[] = items.toArray();
-      for (int i = 0; i < elements.length; i++) try {
-         if (Boolean.TRUE.equals(Remote.invoke(elements[i], null, params)))
-            list.add(elements[i]);
-      } catch(Exception x) { items.removeElement(elements[i]); }
       return list.toArray();
    }
+   /**
+    * This method joins this registrar to an upper tier of registrars, for
+    * federations too large for every registrar to hold every object. The
+    * registrars of each subnet share their objects among themselves, as
+    * usual; but also register the objects they export with the upper tier.
+    * There, the objects are divided among the registrars, by the hashes of
+    * their method names and arities; each registrar holds only the objects
+    * having a method in its share. Lookups are answered from the local
+    * registry when possible, and otherwise by the single upper tier
+    * registrar holding the share of the client method set. The objects are
+    * registered again periodically, see {@link #tierLease tierLease}.<p>
+    * The upper tier registrars are simply those of other Cajo instances,
+    * whose addresses are known; typically dedicated JVMs. <i><u>Note</u>:
+    * </i> every JVM must provide the same upper tier, in the same order.
+    * @param hostnames The addresses or domain names of the upper tier JVMs
+    * @param ports The TCP ports on which their registrars are bound
+    * @throws Exception If any of the upper tier registrars could not be
+    * reached, for network reasons
+    */
+   public void setTier(String hostnames[], int ports[]) throws Exception {
+      final Object shards[] = new Object[hostnames.length];
+      for (int i = 0; i < shards.length; i++) shards[i] =
+         Remote.getItem("//" + hostnames[i] + ':' + ports[i] + "/registrar");
+      boolean started = tier != null;
+      tier = shards;
+      post(shards);
+      if (started) return;
+      Thread thread = new Thread() {
+         public void run() {
+            try {
+               while(true) {
+                  synchronized(posts) { posts.wait(tierLease / 3); }
+                  post(tier);
+               }
+            } catch(InterruptedException x) {}
+         }
+      };
+      thread.setDaemon(true);
+      thread.start();
+   }
    /**
     * This method instantiates a <a href=http://java.sun.com/j2se/1.3/docs/guide/reflection/proxy.html>
     * Dynamic Proxy</a> at the client, which implements the method set
@@ -342,9 +933,8 @@ public final class Cajo implements Grail {
     * invalid host name, host unavailable, host unreachable, etc...
     */
    public void register(String hostname, int port) throws Exception {
-      Object reg = Remote.getItem("//"+hostname+':'+port+"/registrar");
-      if (items.size() > 0) Remote.invoke(reg, "register", items);
-      registrar.register((Vector)Remote.invoke(reg, "request", null));
+      registrar.exchange(
+         Remote.getItem("//"+hostname+':'+port+"/registrar"));
    }
    /**
     * Technically this method is unrelated to the class, it is used
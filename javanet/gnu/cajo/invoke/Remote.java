@@ -10,6 +10,8 @@ import java.util.Vector;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.HashMap;
+import java.util.WeakHashMap;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.Method;
 
 /*
@@ -111,9 +113,24 @@ public final class Remote extends UnicastRemoteObject
    private static RCSF defaultRCSF;
    private static RSSF defaultRSSF;
    private static final HashMap cache   = new HashMap();
+   private static final HashMap fetched = new HashMap();
+   private static long fetchTtl, missTtl;
+   private static final class Fetch { // a cached getItem resolution
+      private Object item; // a registry reference
+      private byte zedmob[]; // or the contents of a URL
+      private String etag;
+      private long modified, time;
+      private Exception miss; // or the reason it was not found
+   }
    private static final Vector items    = new Vector();
    private static final Class[] CLASS   = {}, OBJECT = { Object.class };
    private static final Object[] NOARGS = {};
+   private static final WeakHashMap exports = new WeakHashMap();
+   private static final HashSet immutables = new HashSet(Arrays.asList(
+      new Class[] { String.class, Boolean.class, Character.class, Byte.class,
+         Short.class, Integer.class, Long.class, Float.class, Double.class,
+         java.math.BigInteger.class, java.math.BigDecimal.class }));
+   private static volatile boolean shortCircuit;
    /**
     * If the remote wrapper is being garbage collected, and it hasn't already
     * been manually unexported, let's do that now, as a courtesy.
@@ -313,6 +330,156 @@ public final class Remote extends UnicastRemoteObject
             catch(NoSuchObjectException x) {}
          items.clear();
       }
+      synchronized(exports) { exports.clear(); }
+   }
+   /**
+    * This method enables the caching of the item references obtained by the
+    * {@link #getItem getItem} method, from rmiregistries, and from URLs such
+    * as http:// and file://. While cached, a registry reference is provided
+    * without a lookup. The contents of a URL are cached rather than the item,
+    * a new copy of which is provided on each call; when stale, an http URL
+    * is requested again only if it has changed, by its ETag or modification
+    * time. Names not bound, and URLs not found, are also remembered, so that
+    * repeated attempts fail fast. By default caching is disabled.
+    * <p><i><u>Note</u>:</i> a cached registry reference can outlive its
+    * remote object; a client finding it no longer valid can use the {@link
+    * #flushItem flushItem} method before getting it again.
+    * @param ttl The time in milliseconds for which a resolution is reused,
+    * if 0, caching is disabled, and the cache emptied
+    * @param missTtl The time in milliseconds for which a failure to find a
+    * name or URL is remembered, if 0, failures are not cached
+    */
+   public static void cacheItems(long ttl, long missTtl) {
+      synchronized(fetched) {
+         fetchTtl = ttl;
+         Remote.missTtl = missTtl;
+         if (ttl == 0) fetched.clear();
+      }
+   }
+   /**
+    * This method removes a URL from the cache of the {@link #getItem getItem}
+    * method, so that it will be resolved again on the next call.
+    * @param url The URL, as given to getItem
+    */
+   public static void flushItem(String url) {
+      synchronized(fetched) { fetched.remove(url); }
+   }
+   private static Object fetched(String url) // a fresh cached resolution
+      throws NotBoundException, IOException, ClassNotFoundException {
+      byte zedmob[];
+      synchronized(fetched) {
+         Fetch f = (Fetch)fetched.get(url);
+         if (f == null) return null;
+         long age = System.currentTimeMillis() - f.time;
+         if (f.miss != null) {
+            if (age >= missTtl) return null;
+            if (f.miss instanceof NotBoundException)
+               throw new NotBoundException(f.miss.getMessage());
+            throw new FileNotFoundException(f.miss.getMessage());
+         }
+         if (age >= fetchTtl) return null;
+         if (f.item != null) return f.item;
+         zedmob = f.zedmob;
+      }
+      return zedmob(new ByteArrayInputStream(zedmob));
+   }
+   private static void fetched(String url, Fetch f) {
+      synchronized(fetched) {
+         f.time = System.currentTimeMillis();
+         if (f.miss != null ? missTtl > 0 : fetchTtl > 0) fetched.put(url, f);
+      }
+   }
+   private static Object fetch(String url) // the contents of a real URL
+      throws IOException, ClassNotFoundException {
+      Fetch f;
+      synchronized(fetched) { f = (Fetch)fetched.get(url); }
+      URLConnection uc = new URL(url).openConnection();
+      if (f != null && f.zedmob != null && uc instanceof HttpURLConnection) {
+         if (f.etag != null) uc.setRequestProperty("If-None-Match", f.etag);
+         if (f.modified != 0) uc.setIfModifiedSince(f.modified);
+         if (((HttpURLConnection)uc).getResponseCode() ==
+            HttpURLConnection.HTTP_NOT_MODIFIED) {
+            fetched(url, f); // still valid
+            return zedmob(new ByteArrayInputStream(f.zedmob));
+         }
+      }
+      f = new Fetch();
+      InputStream uis;
+      try { uis = uc.getInputStream(); }
+      catch(FileNotFoundException x) {
+         f.miss = x;
+         fetched(url, f);
+         throw x;
+      }
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      byte buffer[] = new byte[4096];
+      for (int n; (n = uis.read(buffer)) != -1;) bos.write(buffer, 0, n);
+      uis.close();
+      f.zedmob = bos.toByteArray();
+      f.etag = uc.getHeaderField("ETag");
+      f.modified = uc.getLastModified();
+      fetched(url, f);
+      return zedmob(new ByteArrayInputStream(f.zedmob));
+   }
+   /**
+    * This method enables the direct invocation of items remoted in this
+    * JVM, through their remote references. Normally, invoking a remote
+    * reference obtained from a registry, or a lookup, is done over a
+    * socket, even if the item is in the same JVM. With short circuiting
+    * enabled, the {@link #invoke(Object, String, Object) invoke} method
+    * recognises such references, and passes the invocation to the item
+    * directly; invoking the Remote wrapper itself is unaffected. To
+    * preserve the semantics of remote invocation, the arguments and result
+    * are copied, by serialisation, though without a socket; unless they are
+    * all of {@link #immutable immutable} types, which are passed by
+    * reference. By default it is disabled.
+    * <p><i><u>Note</u>:</i> short circuited invocations do not run in an
+    * RMI thread, so the item cannot obtain a client host; and exceptions are
+    * passed to the caller without being copied.
+    * @param enabled true to short circuit invocations of local items
+    */
+   public static void shortCircuit(boolean enabled) {
+      shortCircuit = enabled;
+   }
+   /**
+    * This method declares a class to be immutable, allowing its instances
+    * to be passed by reference, rather than copied, in short circuited
+    * invocations. Strings, boxed primitives, and big numbers are already
+    * declared so. Subclasses are not included.
+    * @param type The class whose instances cannot be changed
+    */
+   public static void immutable(Class type) {
+      synchronized(exports) { immutables.add(type); }
+   }
+   private static Object local(Object ref) { // the wrapper of a local item
+      if (!shortCircuit || !(ref instanceof RemoteStub ||
+         java.lang.reflect.Proxy.isProxyClass(ref.getClass())))
+            return null; // not enabled, or the wrapper itself
+      synchronized(exports) {
+         WeakReference wr = (WeakReference)exports.get(ref);
+         return wr != null ? wr.get() : null;
+      }
+   }
+   private static Object copy(Object o) throws Exception { // as RMI would
+      if (o == null) return null;
+      synchronized(exports) {
+         if (immutables.contains(o.getClass())) return o;
+         if (o instanceof Object[]) {
+            Object a[] = (Object[])o;
+            int i = 0;
+            while(i < a.length &&
+               (a[i] == null || immutables.contains(a[i].getClass()))) i++;
+            if (i == a.length) return a.clone();
+         }
+      }
+      return new MarshalledObject(o).get();
+   }
+   private static Object proxy(Object o) { // for an unserialisable object
+      HashSet interfaces = new HashSet();
+      for (Class c = o.getClass(); c != null; c = c.getSuperclass())
+         interfaces.addAll(Arrays.asList(c.getInterfaces()));
+      return gnu.cajo.utils.extra.TransparentItemProxy.getItem(
+         o, (Class[])interfaces.toArray(CLASS));
    }
    /**
     * A utility method to reconstitute a zipped marshalled object (zedmob)
@@ -378,7 +545,8 @@ public final class Remote extends UnicastRemoteObject
     * and name, are all optional. If missing the host is presumed local, the
     * port 1099, and the name "main". The referenced resource can be
     * returned as a MarshalledObject, it will be extracted automatically.
-    * If the URL is null, it will be assumed to be ///.
+    * If the URL is null, it will be assumed to be ///. Registry and URL
+    * resolutions can be cached, see {@link #cacheItems cacheItems}.
     * @return A reference to the item contained in the URL. It may be either
     * local, or remote to this VM.
     * @throws RemoteException if the remote registry could not be reached.
@@ -398,8 +566,21 @@ public final class Remote extends UnicastRemoteObject
       Object item = null;
       if (url == null) url = "///main";
       else if (url.startsWith("//") && url.endsWith("/")) url += "main";
+      boolean caching;
+      synchronized(fetched) { caching = fetchTtl > 0 || missTtl > 0; }
+      if (caching && (url.startsWith("//") || url.indexOf(':') != -1)) {
+         item = fetched(url);
+         if (item != null) return item;
+      }
       if (url.startsWith("//")) { // if from an rmiregistry
-         item = java.rmi.Naming.lookup(url); // get reference
+         if (!caching) item = java.rmi.Naming.lookup(url); // get reference
+         else {
+            Fetch f = new Fetch();
+            try { f.item = item = java.rmi.Naming.lookup(url); }
+            catch(NotBoundException x) { f.miss = x; }
+            fetched(url, f);
+            if (f.miss != null) throw (NotBoundException)f.miss;
+         }
       } else if (url.startsWith("/")) { // if from a serialized object file
          InputStream ris = Remote.class.getResourceAsStream(url);
          if (ris == null) ris = new FileInputStream('.' + url);
@@ -407,6 +588,8 @@ public final class Remote extends UnicastRemoteObject
          ris.close();
       } else if (url.indexOf(':') == -1) { // from a class file
          item = Class.forName(url).newInstance();
+      } else if (caching) { // from a real URL, remembering its contents
+         item = fetch(url);
       } else { // otherwise from a real URL, http:// ftp:// file:// etc.
          InputStream uis = new URL(url).openStream();
          item = zedmob(uis);
@@ -556,14 +739,14 @@ public final class Remote extends UnicastRemoteObject
          } else if (o_args.length == 1 && method.equals("equals"))
             return item.equals(o_args[0]) ? Boolean.TRUE : Boolean.FALSE;
          else for (int i = 0; i < o_args.length; i++) {
-            if (o_args[i] != null && !(o_args[i] instanceof Serializable)) {
-               HashSet interfaces = new HashSet();
-               for (Class c = o_args[i].getClass(); c != null;
-                  c = c.getSuperclass())
-                  interfaces.addAll(Arrays.asList(c.getInterfaces()));
-               o_args[i] = gnu.cajo.utils.extra.TransparentItemProxy.getItem(
-                  o_args[i], (Class[])interfaces.toArray(CLASS));
-            }
+            if (o_args[i] != null && !(o_args[i] instanceof Serializable))
+               o_args[i] = proxy(o_args[i]);
+         }
+         Remote local = (Remote)local(item);
+         if (local != null) { // short circuit
+            Object result = local.invoke(method, copy(args));
+            return result == null || result instanceof Serializable ?
+               copy(result) : proxy(result);
          }
       }
       if (item instanceof Invoke) return ((Invoke)item).invoke(method, args);
@@ -582,11 +765,7 @@ public final class Remote extends UnicastRemoteObject
          Object result = m.invoke(item, o_args != NOARGS ? o_args : null);
          if (result != null && !(result instanceof Serializable)) try {
             RemoteServer.getClientHost();
-            HashSet interfaces = new HashSet();
-            for (Class c = result.getClass(); c != null; c = c.getSuperclass())
-               interfaces.addAll(Arrays.asList(c.getInterfaces()));
-            return gnu.cajo.utils.extra.TransparentItemProxy.getItem(
-               result, (Class[])interfaces.toArray(CLASS));
+            return proxy(result);
          } catch(ServerNotActiveException x) { /* not a remote call */ }
          return result;
       } catch(java.lang.reflect.InvocationTargetException x) {
@@ -666,6 +845,7 @@ public final class Remote extends UnicastRemoteObject
       super(port, rcsf, rssf);
       this.item = item;
       items.add(this);
+      synchronized(exports) { exports.put(this, new WeakReference(this)); }
    }
    /**
     * This method will attempt to make the wrapper no longer remotely
@@ -683,6 +863,7 @@ public final class Remote extends UnicastRemoteObject
    public boolean unexport(boolean force) throws NoSuchObjectException {
       if (UnicastRemoteObject.unexportObject(this, force)) {
          items.remove(this);
+         synchronized(exports) { exports.remove(this); }
          return true;
       } else return false;
    }
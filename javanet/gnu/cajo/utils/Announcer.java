@@ -0,0 +1,184 @@
+package gnu.cajo.utils;
+
+import gnu.cajo.invoke.Remote;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.MulticastSocket;
+import java.util.Random;
+
+/*
+ * Multicast Announcement Service
+ * Copyright (C) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file Announcer.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class repeatedly announces an object reference, on the address and
+ * port of a {@link Multicast Multicast} object. Unlike its announce methods,
+ * the packet is prepared only once, and sent over a single socket, kept open
+ * for the life of the announcer. The object is announced at regular
+ * intervals, as a heartbeat, and on request; for example when its state has
+ * changed.<p>
+ * To prevent many JVMs started at the same time from announcing in
+ * unison, and flooding the network, the first announcement is delayed by
+ * a random time within the heartbeat period, or a minute, if it is longer;
+ * and the period varies randomly by up to half its value. A JVM which has
+ * just {@link #heard heard} the announcement of another defers its next
+ * heartbeat, though never beyond twice the period. Requested announcements
+ * are never sent more often than the minimum interval; requests made in
+ * the meantime are combined into one.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class Announcer implements Runnable {
+   private static final Random random = new Random();
+   private final MulticastSocket socket;
+   private final DatagramPacket packet;
+   private final long start = System.currentTimeMillis();
+   private long next, sent;
+   private boolean requested, stopped;
+   /**
+    * The average time in milliseconds between heartbeat announcements, if 0
+    * the object is only announced on request.
+    */
+   public long period;
+   /**
+    * The minimum time in milliseconds between announcements. By default it
+    * is one second.
+    */
+   public long interval = 1000L;
+   /**
+    * The constructor prepares an announcement of the zedmob of an object
+    * reference, as does the {@link Multicast#announce(Object, int)
+    * announce} method of Multicast, and starts the announcing thread. The
+    * first announcement will be made within the period, but at most a
+    * minute; or within half a second, if it is 0.
+    * @param multicast The object providing the network interface, address
+    * and port on which to announce
+    * @param item The object reference to be sent in the announcement
+    * packet, if it is not already remoted, it will be, automatically.
+    * @param ttl The time-to-live of the broadcast packets
+    * @param period The average time in milliseconds between heartbeat
+    * announcements, if 0 the object is only announced on request
+    * @throws IOException If the datagram socket could not be created
+    */
+   public Announcer(Multicast multicast, Object item, int ttl, long period)
+      throws IOException {
+      this(multicast, Multicast.packet(item), ttl, period);
+   }
+   /**
+    * The constructor prepares an announcement of an object bound in the
+    * local rmiregistry, compact if the Multicast object's {@link
+    * Multicast#compact compact} format is enabled, as does the {@link
+    * Multicast#announce(String, Remote, int) announce} method of Multicast,
+    * and starts the announcing thread. The first announcement will be made
+    * within the period, but at most a minute; or within half a second, if
+    * it is 0.
+    * @param multicast The object providing the network interface, address
+    * and port on which to announce
+    * @param name The name under which the object is bound in the registry
+    * @param item The bound object reference
+    * @param ttl The time-to-live of the broadcast packets
+    * @param period The average time in milliseconds between heartbeat
+    * announcements, if 0 the object is only announced on request
+    * @throws IOException If the datagram socket could not be created
+    */
+   public Announcer(Multicast multicast, String name, Remote item, int ttl,
+      long period) throws IOException {
+      this(multicast, Multicast.packet(name, item, multicast.compact), ttl,
+         period);
+   }
+   private Announcer(Multicast multicast, byte packet[], int ttl,
+      long period) throws IOException {
+      this.packet = new DatagramPacket(packet, packet.length,
+         InetAddress.getByName(multicast.address), multicast.port);
+      this.period = period;
+      socket = new MulticastSocket();
+      socket.setInterface(multicast.host);
+      socket.setTimeToLive(ttl);
+      next = start + (period > 0 ? (long)(random.nextDouble() *
+         Math.min(period, 60000L)) : random.nextInt(500));
+      Thread thread = new Thread(this);
+      thread.setDaemon(true);
+      thread.start();
+   }
+   /**
+    * This method requests an announcement. It will be made as soon as the
+    * minimum interval since the previous one has elapsed.
+    */
+   public synchronized void announce() {
+      if (sent == 0) return; // the first announcement is yet to be made
+      long time = Math.max(sent + interval, System.currentTimeMillis());
+      if (time < next) {
+         next = time;
+         requested = true;
+         notify();
+      }
+   }
+   /**
+    * This method reports that the announcement of another JVM was just
+    * received. Unless an announcement has been requested, the next
+    * heartbeat is deferred by a random time within the period; but never
+    * to more than twice the period since the last one. If many JVMs are
+    * announcing, only some of them then need to.
+    */
+   public synchronized void heard() {
+      if (requested || period <= 0) return;
+      long time = Math.min(System.currentTimeMillis() + period / 2 +
+         (long)(random.nextDouble() * period),
+         (sent != 0 ? sent : start) + period * 2);
+      if (time > next) next = time;
+   }
+   /**
+    * This method stops the announcements, and closes the socket.
+    */
+   public synchronized void stop() {
+      stopped = true;
+      notify();
+   }
+   /**
+    * This method sends the announcements, it is called by the thread
+    * created by the constructor, and is not intended to be called directly.
+    */
+   public void run() {
+      try {
+         while(true) {
+            synchronized(this) {
+               long wait = next - System.currentTimeMillis();
+               while(!stopped && wait > 0) {
+                  wait(wait);
+                  wait = next - System.currentTimeMillis();
+               }
+               if (stopped) break;
+               sent = System.currentTimeMillis();
+               requested = false;
+               next = period > 0 ? // vary the heartbeats, by up to half
+                  sent + period / 2 + (long)(random.nextDouble() * period) :
+                  Long.MAX_VALUE;
+            }
+            try { socket.send(packet); }
+            catch(IOException x) { x.printStackTrace(); }
+         }
+      } catch(InterruptedException x) {}
+      socket.close();
+   }
+}
@@ -5,6 +5,12 @@ import java.io.*;
 import java.net.*;
 import java.rmi.registry.*;
 import java.rmi.MarshalledObject;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 
 /*
  * Multicast Announcement Class
@@ -35,7 +41,15 @@ import java.rmi.MarshalledObject;
  * reference to a remote object as a zipped MarshalledObject (zedmob).  It also
  * allows a listening object to receive announced object referencess via a
  * callback mechanism. A single VM can use as many Multicast objects as it
- * wishes.
+ * wishes.<p>
+ * Alternatively, an object bound in the local rmiregistry can be announced
+ * in a compact fixed layout: a magic number, a format version, the client
+ * host and port of the registry, an object id, the name under which the
+ * object is bound, and a digest of its method signatures. Such a packet is
+ * typically under a hundred bytes. Listeners obtain the remote reference
+ * from the registry only when they request it, through the {@link #getItem
+ * getItem} method. In either format, recently received packets are
+ * recognised, and not parsed again.
  * <p><i>Note:</i> this class requires that the network routers be configured
  * to pass IP multicast packets, at least for the multicast address used.  If
  * not, the packets will will only exist within the subnet of origination.
@@ -44,8 +58,21 @@ import java.rmi.MarshalledObject;
  * @author John Catherino
  */
 public final class Multicast implements Runnable {
+   private static final int MAGIC = 0x63616A6F; // "cajo"
+   private static final byte VERSION = 1;
+   private static final class Announcement { // a parsed packet
+      private String url;
+      private long digest;
+      private RemoteInvoke item;
+   }
+   private final LinkedList queue = new LinkedList();
+   private final HashSet queued = new HashSet();
+   private Announcement current;
    private Object callback;
    private Thread thread;
+   private MulticastSocket socket;
+   private long dropped;
+   private int workers;
    /**
     * The network interface on which this multicast object is listening
     */
@@ -71,9 +98,27 @@ public final class Multicast implements Runnable {
    /**
     * A reference to a received remote object reference, when the object is
     * listening.  It is referenced by the called listener, and should be
-    * considered valid for the duration of the invocation only.
+    * considered valid for the duration of the invocation only. For compact
+    * announcements, it is null until the reference is requested via the
+    * {@link #getItem getItem} method; listeners should use it instead.
     */
    public RemoteInvoke item;
+   /**
+    * The digest of the method signatures of the announced object, when the
+    * object is listening. It is 0 unless the announcement is compact. It
+    * allows listeners to ignore objects of no interest, without contacting
+    * them. It should be considered valid for the duration of the invocation
+    * only.
+    */
+   public long digest;
+   /**
+    * The choice of announcing objects bound in the registry in the compact
+    * format. Listeners of earlier versions of this library cannot read it,
+    * and will not discover the objects announced so; it should be enabled
+    * only once all of them have been upgraded. By default it is false,
+    * and the whole reference is sent.
+    */
+   public boolean compact;
    /**
     * The default constructor sets the internal fields to default values which
     * should be sufficient for most purposes. The multicast socket address
@@ -151,21 +196,120 @@ public final class Multicast implements Runnable {
     * packet could not be sent.
     */
    public void announce(Object item, int ttl) throws IOException {
-      InetAddress group = InetAddress.getByName(address);
+      send(packet(item), ttl);
+   }
+   /**
+    * This constructor creates a copy of a listening object, to hold the
+    * details of one announcement, for a worker thread.
+    */
+   private Multicast(Multicast m, Announcement a, InetAddress iaddr) {
+      host = m.host;
+      address = m.address;
+      port = m.port;
+      current = a;
+      item = a.item;
+      digest = a.digest;
+      this.iaddr = iaddr;
+   }
+   /**
+    * This method is used to make compact UDP announcements on the network,
+    * of an object bound in the local rmiregistry, e.g. by
+    * {@link ItemServer#bind ItemServer.bind}. The receivers will look the
+    * object up in the registry, only if they require its reference. Unless
+    * the {@link #compact compact} format is enabled, or if the default
+    * client port is anonymous, so that the registry cannot be found from
+    * the announcement, the whole reference is sent, as by {@link
+    * #announce(Object, int) announce}.
+    * @param name The name under which the object is bound in the registry
+    * @param item The bound object reference
+    * @param ttl The time-to-live of the broadcast packet, as for the
+    * announce method
+    * @throws IOException If a datagram socket could not be created, or the
+    * packet could not be sent.
+    */
+   public void announce(String name, Remote item, int ttl)
+      throws IOException {
+      send(packet(name, item, compact), ttl);
+   }
+   /**
+    * This method creates a compact announcement packet, or the zedmob of the
+    * item, if not compact, or the default client port is anonymous.
+    */
+   static byte[] packet(String name, Remote item, boolean compact)
+      throws IOException {
+      int port = Remote.getDefaultClientPort();
+      if (!compact || port == 0) return packet(item);
+      String host = Remote.getDefaultClientHost();
+      if (host == null) host = InetAddress.getLocalHost().getHostAddress();
       ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      DataOutputStream dos = new DataOutputStream(baos);
+      dos.writeInt(MAGIC);
+      dos.writeByte(VERSION);
+      dos.writeUTF(host);
+      dos.writeShort(port);
+      dos.writeInt(item.hashCode()); // identifies the export
+      dos.writeUTF(name);
+      dos.writeLong(digest(item.item));
+      dos.close();
+      return baos.toByteArray();
+   }
+   /**
+    * This method creates an announcement packet, containing the zedmob of
+    * the item. The item will first have its startThread method invoked, and
+    * its setProxy method, with a reference to itself.
+    */
+   static byte[] packet(Object item) throws IOException {
+      if (!(item instanceof Remote)) item = new Remote(item);
+      return packet(item, item, false);
+   }
+   /**
+    * This method creates an announcement packet, containing the zedmob of
+    * the item. The item will first have its startThread method invoked, and
+    * its setProxy method, with the proxy provided, even if null.
+    */
+   static byte[] packet(Object item, Object proxy) throws IOException {
       if (!(item instanceof Remote)) item = new Remote(item);
+      return packet(item, proxy, true);
+   }
+   private static byte[] packet(Object item, Object proxy, boolean setItem)
+      throws IOException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      if (setItem) try { Remote.invoke(proxy, "setItem", item); }
+      catch(Exception x) {}
       try {
          Remote.invoke(item, "startThread", null);
-         Remote.invoke(item, "setProxy", new MarshalledObject(item));
+         Remote.invoke(item, "setProxy", new MarshalledObject(proxy));
       } catch(Exception x) {}
       ((Remote)item).zedmob(baos);
       byte packet[] = baos.toByteArray();
       baos.close();
+      return packet;
+   }
+   /**
+    * This method computes a 64 bit FNV-1a hash of the sorted public method
+    * signatures of an object.
+    */
+   private static long digest(Object item) {
+      Method methods[] = item.getClass().getMethods();
+      String names[] = new String[methods.length];
+      for (int i = 0; i < methods.length; i++)
+         names[i] = methods[i].toString();
+      Arrays.sort(names);
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < names.length; i++)
+         for (int j = 0; j < names[i].length(); j++) {
+            hash ^= names[i].charAt(j);
+            hash *= 0x100000001b3L;
+         }
+      return hash;
+   }
+   private void send(byte packet[], int ttl) throws IOException {
       MulticastSocket ms = new MulticastSocket();
       try {
          ms.setInterface(host);
          ms.setTimeToLive(ttl);
-         ms.send(new DatagramPacket(packet, packet.length, group, port));
+         ms.send(new DatagramPacket(packet, packet.length,
+            InetAddress.getByName(address), port));
       } finally { ms.close(); }
    }
    /**
@@ -190,24 +334,7 @@ public final class Multicast implements Runnable {
     */
    public void announce(Object item, int ttl, Object proxy)
       throws IOException {
-      InetAddress group = InetAddress.getByName(address);
-      ByteArrayOutputStream baos = new ByteArrayOutputStream();
-      if (!(item instanceof Remote)) item = new Remote(item);
-      try { Remote.invoke(proxy, "setItem", item); }
-      catch(Exception x) {}
-      try {
-         Remote.invoke(item, "startThread", null);
-         Remote.invoke(item, "setProxy", new MarshalledObject(proxy));
-      } catch(Exception x) {}
-      ((Remote)item).zedmob(baos);
-      byte packet[] = baos.toByteArray();
-      baos.close();
-      MulticastSocket ms = new MulticastSocket();
-      try {
-         ms.setInterface(host);
-         ms.setTimeToLive(ttl);
-         ms.send(new DatagramPacket(packet, packet.length, group, port));
-      } finally { ms.close(); }
+      send(packet(item, proxy), ttl);
    }
    /**
     * This method starts a thead to listen on the construction {@link #address
@@ -224,18 +351,121 @@ public final class Multicast implements Runnable {
     * @throws IllegalArgumentException If the object is actively listening, at
     * the time of the invocation.
     */
-   public void listen(Object callback) {
+   public void listen(Object callback) { listen(callback, 0); }
+   /**
+    * This method starts a thread to listen on the construction {@link
+    * #address address} and {@link #port port}, as does the single argument
+    * listen method. However, the listening thread only receives the
+    * announcements; they are processed by a pool of worker threads, so that
+    * a slow listener does not cause packets to be lost. Each invocation of
+    * the listener is provided its own copy of this Multicast object, holding
+    * the details of its announcement; the listener will be invoked
+    * reentrantly. Announcements equal to one awaiting processing are
+    * discarded. If 256 announcements are awaiting processing, further ones
+    * are discarded, and counted; see {@link #getDropped getDropped}.
+    * @param callback An object, presumably local to this VM, which is to
+    * receive notifications about announcements.
+    * @param workers The number of threads processing announcements, if 0,
+    * they are processed by the listening thread
+    * @throws IllegalArgumentException If the object is actively listening, at
+    * the time of the invocation.
+    */
+   public void listen(Object callback, int workers) {
       if (thread == null) {
          this.callback = callback;
+         this.workers = workers;
          thread = new Thread(this);
          thread.setDaemon(true);
          thread.start();
+         for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread() {
+               public void run() { work(); }
+            };
+            worker.setDaemon(true);
+            worker.start();
+         }
       } else throw new IllegalArgumentException("Already listening");
    }
+   /**
+    * This method reports the number of announcements discarded, because too
+    * many were awaiting processing.
+    * @return The number of announcements discarded
+    */
+   public long getDropped() {
+      synchronized(queue) { return dropped; }
+   }
+   /**
+    * This method is run by each worker thread, to process announcements
+    * received, until listening stops.
+    */
+   private void work() {
+      while(true) try {
+         Object entry[];
+         synchronized(queue) {
+            while(queue.isEmpty()) {
+               if (socket == null && thread == null) return;
+               queue.wait();
+            }
+            entry = (Object[])queue.removeFirst();
+         }
+         try {
+            Object quit = Remote.invoke(callback, "multicast", new Multicast(
+               this, (Announcement)entry[1], (InetAddress)entry[2]));
+            if (quit != null) synchronized(queue) { // stop listening
+               if (socket != null) socket.close();
+               queue.clear();
+            }
+         } catch(Exception x) { x.printStackTrace(); }
+         finally {
+            synchronized(queue) { queued.remove(entry[0]); }
+         }
+      } catch(InterruptedException x) { return; }
+   }
+   /**
+    * This method provides the remote reference of the object announced, for
+    * the duration of the invocation of the listener. For compact
+    * announcements, it is obtained from the announcer's rmiregistry on the
+    * first request; and is kept for subsequent announcements of the same
+    * object.
+    * @return The remote reference of the announced object
+    * @throws Exception If the reference could not be obtained, for network
+    * reasons, or because the object is no longer bound
+    */
+   public RemoteInvoke getItem() throws Exception {
+      Announcement a = current;
+      if (item == null && a != null) synchronized(a) {
+         if (a.item == null) a.item = (RemoteInvoke)Remote.getItem(a.url);
+         item = a.item;
+      }
+      return item;
+   }
+   /**
+    * This method parses a received packet, either a zedmob, or a compact
+    * announcement.
+    */
+   private static Announcement parse(byte data[], int length)
+      throws Exception {
+      Announcement a = new Announcement();
+      DataInputStream dis =
+         new DataInputStream(new ByteArrayInputStream(data, 0, length));
+      try {
+         if (length > 5 && dis.readInt() == MAGIC &&
+            dis.readByte() == VERSION) {
+            String host = dis.readUTF();
+            int port = dis.readUnsignedShort();
+            dis.readInt(); // the object id only serves to tell exports apart
+            a.url = "//" + host + ':' + port + '/' + dis.readUTF();
+            a.digest = dis.readLong();
+         } else a.item = (RemoteInvoke)Remote.zedmob(
+            new ByteArrayInputStream(data, 0, length));
+      } finally { dis.close(); }
+      return a;
+   }
    /**
     * The monitor thread, it listens for multicasts.  It will sleep until
     * the arrival of a message.  The packet will be reconstituted into a
-    * remote object reference, from its zedmob encapsulation.  The object
+    * remote object reference, from its zedmob encapsulation, unless it is
+    * compact, or the same as one recently received.  The object
     * reference will be saved into the public item member variable, also the
     * calling VM's address will be extracted into the public address member
     * variable. The listener's multicast method will be called next with a
@@ -249,27 +479,74 @@ public final class Multicast implements Runnable {
     * the {@link #listen listen} method again.
     */
    public void run() {
+      LinkedHashMap seen = new LinkedHashMap(16, .75F, true) {
+         private static final long serialVersionUID = 1L;
+         protected boolean removeEldestEntry(java.util.Map.Entry eldest) {
+            return size() > 64;
+         }
+      };
       try {
          MulticastSocket ms = new MulticastSocket(port);
-         ms.setInterface(host);
-         ms.joinGroup(InetAddress.getByName(address));
-         DatagramPacket dp = new DatagramPacket(new byte[0xFF00], 0xFF00);
-         while(!thread.isInterrupted()) try {
+         InetAddress group = InetAddress.getByName(address);
+         if (host.isAnyLocalAddress()) { // join on all of the interfaces
+            Enumeration e = NetworkInterface.getNetworkInterfaces();
+            while(e != null && e.hasMoreElements())
+               try {
+                  ms.joinGroup(new InetSocketAddress(group, port),
+                     (NetworkInterface)e.nextElement());
+               } catch(IOException x) {} // not multicast capable
+         } else {
+            ms.setInterface(host);
+            ms.joinGroup(group);
+         }
+         synchronized(queue) { socket = ms; }
+         byte buffer[] = new byte[0xFF00];
+         DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
+         while(!thread.isInterrupted() && !ms.isClosed()) try {
+            dp.setLength(buffer.length);
             ms.receive(dp);
-            ByteArrayInputStream bais = new ByteArrayInputStream(dp.getData());
+            String key = new String(buffer, 0, dp.getLength(), "ISO-8859-1");
             try {
-               item = (RemoteInvoke)Remote.zedmob(bais);
+               Announcement a = (Announcement)seen.get(key);
+               if (a == null) {
+                  a = parse(buffer, dp.getLength());
+                  seen.put(key, a);
+               }
+               if (workers > 0) { // hand it to the worker threads
+                  synchronized(queue) {
+                     if (queued.contains(key)) continue; // a duplicate
+                     if (queue.size() >= 256) {
+                        dropped++;
+                        continue;
+                     }
+                     queued.add(key);
+                     queue.add(new Object[] { key, a, dp.getAddress() });
+                     queue.notify();
+                  }
+                  continue;
+               }
+               current = a;
+               item = a.item;
+               digest = a.digest;
                iaddr = dp.getAddress();
                Object quit = Remote.invoke(callback, "multicast", this);
-               item = null;
                if (quit != null) break;
             } catch(Exception x) { x.printStackTrace(); }
-            finally { bais.close(); }
-         } catch(Exception x) { x.printStackTrace(); }
+            finally {
+               current = null;
+               item = null;
+            }
+         } catch(Exception x) {
+            if (!ms.isClosed()) x.printStackTrace();
+         }
          ms.close();
          ms = null;
-         thread = null;
       } catch(IOException x) { x.printStackTrace(); }
+      synchronized(queue) {
+         socket = null;
+         thread = null;
+         queue.notifyAll(); // let idle workers finish
+      }
    }
    /**
     * The application method loads a zipped marshalled object (zedmob) to a
@@ -0,0 +1,101 @@
+package gnu.cajo.utils.extra;
+
+import gnu.cajo.invoke.*;
+
+/*
+ * Item Batch Invoker
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file BatchItem.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used to accept batches of invocations, on any given object
+ * reference. A client can then send many invocations, typically of void
+ * methods, in a single round trip, rather than one each. The invocations are
+ * performed in their original order. It is used by {@link
+ * TransparentItemProxy TransparentItemProxy} to deliver methods declared in
+ * a <tt>BATCHED</tt> interface constant; a server wishing to support this,
+ * would remote its object wrapped in a BatchItem. All other invocations are
+ * passed directly to the wrapped object, which is unaware, and need not be
+ * changed, to assist in this functionality.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public class BatchItem implements Invoke {
+   private static final long serialVersionUID = 1L;
+   /**
+    * This is the object to receive the batched invocations. It is declared
+    * as public to allow the reference of the BatchItem, and its wrapped
+    * object, from a single instance of BatchItem.
+    */
+   public final Object item;
+   /**
+    * This creates the object, to accept batches of invocations for the
+    * target object.
+    * @param item The object to receive the client invocations. It can be
+    * local, remote, or even a proxy.
+    */
+   public BatchItem(Object item) { this.item = item; }
+   /**
+    * This method performs a batch of invocations on the wrapped item, in
+    * order. A failed invocation does not prevent those following it from
+    * being performed.
+    * @param methods The names of the methods to be invoked
+    * @param args The arguments for each of the invocations, its length must
+    * match that of the methods
+    * @return null if all of the invocations succeeded, otherwise an array
+    * with the exception resulting from each invocation, or null for those
+    * which succeeded
+    */
+   public Object[] batch(String methods[], Object args[]) {
+      if (methods.length != args.length)
+         throw new IllegalArgumentException("Batch length mismatch");
+      Object errors[] = null;
+      for (int i = 0; i < methods.length; i++)
+         try { Remote.invoke(item, methods[i], args[i]); }
+         catch(Exception x) {
+            if (errors == null) errors = new Object[methods.length];
+            errors[i] = x;
+         }
+      return errors;
+   }
+   /**
+    * This method performs batch invocations, and passes all others to the
+    * wrapped item.
+    * @param method The internal object's public method being called.
+    * @param  args The arguments to pass to the internal object's method.
+    * @return The sychronous data, if any, resulting from the invocation.
+    * @throws RemoteException For a network related failure.
+    * @throws NoSuchMethodException If the method/agruments signature cannot
+    * be matched to the internal object's public method interface.
+    * @throws Exception If the internal object's method rejects the
+    * invocation.
+    */
+   public Object invoke(String method, Object args) throws Exception {
+      if ("batch".equals(method) && args instanceof Object[] &&
+         ((Object[])args).length == 2 &&
+         ((Object[])args)[0] instanceof String[] &&
+         ((Object[])args)[1] instanceof Object[])
+         return batch((String[])((Object[])args)[0],
+            (Object[])((Object[])args)[1]);
+      return Remote.invoke(item, method, args);
+   }
+}
@@ -0,0 +1,133 @@
+package gnu.cajo.utils.extra;
+
+import gnu.cajo.invoke.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/*
+ * Item Invocation Coalescer
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file CoalescingItem.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used to transparently combine concurrent identical
+ * invocations on any given object reference. When several clients invoke
+ * the same method, with equal arguments, at the same time; only the first
+ * invocation is actually performed. The others wait for it to complete,
+ * and receive its result, or its exception. It is intended for idempotent,
+ * expensive methods; it prevents a <i>thundering herd</i> of identical
+ * invocations, for example following the expiry of a cached result, or the
+ * restart of a server. The wrapped object is unaware, and need not be
+ * changed, to assist in this functionality.<p>
+ * <i>Note:</i> the same result object is provided to all of the combined
+ * local callers, it must therefore not be modified.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public class CoalescingItem implements Invoke {
+   private static final long serialVersionUID = 1L;
+   private static final class Flight { // an invocation in progress
+      private Object result;
+      private Exception error;
+      private boolean done;
+   }
+   private final HashSet methods;
+   private transient HashMap flights;
+   private long invocations, coalesced;
+   /**
+    * This is the object whose invocations are to be combined. It is declared
+    * as public to allow the reference of the CoalescingItem, and its wrapped
+    * object, from a single instance of CoalescingItem.
+    */
+   public final Object item;
+   /**
+    * This creates the object, to combine the target object's concurrent
+    * identical invocations.
+    * @param item The object to receive the client invocations. It can be
+    * local, remote, or even a proxy.
+    * @param methods The names of the methods whose invocations may be
+    * combined, all others are passed directly to the item. If null, all
+    * invocations will be combined.
+    */
+   public CoalescingItem(Object item, String methods[]) {
+      this.item = item;
+      this.methods = methods != null ? new HashSet(Arrays.asList(methods)) :
+         null;
+   }
+   /**
+    * This method passes the invocation to the wrapped item, unless an equal
+    * invocation is already in progress; in which case it waits for, and
+    * returns, its outcome. <i>Note:</i> this method can be called
+    * reentrantly.
+    * @param method The internal object's public method being called.
+    * @param  args The arguments to pass to the internal object's method.
+    * @return The sychronous data, if any, resulting from the invocation.
+    * @throws RemoteException For a network related failure.
+    * @throws NoSuchMethodException If the method/agruments signature cannot
+    * be matched to the internal object's public method interface.
+    * @throws Exception If the internal object's method rejects the
+    * invocation.
+    */
+   public Object invoke(String method, Object args) throws Exception {
+      if (methods != null && !methods.contains(method))
+         return Remote.invoke(item, method, args);
+      Invocation key = new Invocation(method, args);
+      Flight flight;
+      boolean leader = false;
+      synchronized(this) {
+         if (flights == null) flights = new HashMap();
+         flight = (Flight)flights.get(key);
+         if (flight == null) {
+            flight = new Flight();
+            flights.put(key, flight);
+            leader = true;
+         } else coalesced++;
+         invocations++;
+      }
+      if (leader) {
+         try { flight.result = Remote.invoke(item, method, args); }
+         catch(Exception x) { flight.error = x; }
+         catch(Throwable t) { flight.error = new Exception(t); }
+         finally {
+            synchronized(this) { flights.remove(key); }
+            synchronized(flight) {
+               flight.done = true;
+               flight.notifyAll();
+            }
+         }
+      } else synchronized(flight) { while(!flight.done) flight.wait(); }
+      if (flight.error != null) throw flight.error;
+      return flight.result;
+   }
+   /**
+    * This method reports the number of invocations of combinable methods.
+    * @return The number of invocations
+    */
+   public synchronized long getInvocations() { return invocations; }
+   /**
+    * This method reports the number of invocations which were combined with
+    * an equal one already in progress, rather than performed.
+    * @return The number of combined invocations
+    */
+   public synchronized long getCoalesced() { return coalesced; }
+}
@@ -0,0 +1,90 @@
+package gnu.cajo.utils.extra;
+
+/*
+ * Flow Control Interfaces
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file Flow.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This interface groups the interfaces by which a stream of elements is
+ * pushed from a {@link Publisher Publisher} to its subscribers, no faster
+ * than each subscriber has requested. Since the implementations are not
+ * serialisable, they are automatically remoted when passed between JVMs,
+ * and invoked through {@link TransparentItemProxy TransparentItemProxies}.
+ * <p>
+ * Any of the methods may fail for network related reasons; through a proxy
+ * this is thrown as an unchecked exception.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public interface Flow {
+   /**
+    * This interface is implemented by a source of elements.
+    */
+   interface Source {
+      /**
+       * This method subscribes to the elements published after it is
+       * called. None will be delivered until they are requested.
+       * @param subscriber The object to receive the elements
+       * @return The subscription, on which to request elements
+       */
+      Subscription subscribe(Subscriber subscriber);
+   }
+   /**
+    * This interface is implemented by a receiver of elements.
+    */
+   interface Subscriber {
+      /**
+       * This method delivers the next elements, no more than have been
+       * requested. It is not called concurrently.
+       * @param elements The elements, in their order of publication
+       */
+      void onNext(Object elements[]);
+      /**
+       * This method reports the stream has failed, or the subscription has
+       * been cancelled by the source. No further calls will be made.
+       * @param x The reason
+       */
+      void onError(Exception x);
+      /**
+       * This method reports the stream has ended, after all of its elements
+       * have been delivered. No further calls will be made.
+       */
+      void onComplete();
+   }
+   /**
+    * This interface is implemented by the subscription of a subscriber to
+    * a source.
+    */
+   interface Subscription {
+      /**
+       * This method requests more elements be delivered.
+       * @param n The number of further elements the subscriber can accept
+       */
+      void request(long n);
+      /**
+       * This method ends the subscription. Elements already on their way
+       * may still be delivered.
+       */
+      void cancel();
+   }
+}
@@ -0,0 +1,338 @@
+package gnu.cajo.utils.extra;
+
+import gnu.cajo.invoke.Remote;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Random;
+
+/*
+ * Gossip Membership Detector
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file Gossip.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class maintains the live membership of a group of objects, typically
+ * registrars in separate JVMs, through the periodic exchange of heartbeats.
+ * Each member increments its own heartbeat counter every interval, and sends
+ * its table of counters to a few randomly chosen members; which merge it
+ * with their own, and reply with theirs. News of each member thereby
+ * spreads through the group in a logarithmic number of rounds, without any
+ * member needing to contact all of the others.<p>
+ * Failures are detected by the <i>phi accrual</i> method: rather than a fixed
+ * timeout, the time since a member's counter last advanced is compared with
+ * the intervals at which it has been advancing. When the suspicion level,
+ * phi, exceeds the threshold, the member is declared dead, and the listener
+ * is notified. A member declared dead, whose counter later advances, is
+ * declared alive again.<p>
+ * Members are referenced by any object, local or remote, which implements
+ * a method of the signature:<p>
+ * <blockquote><tt>
+ * public Object[] gossip(Object members[], long beats[]);</tt></blockquote><p>
+ * typically by forwarding to the gossip method of its own instance of this
+ * class. Members reporting that they do not support the method are removed,
+ * without being declared dead. The listener is called back on methods of
+ * the signature:<p>
+ * <blockquote><tt>
+ * public void dead(Object member);<br>
+ * public void alive(Object member);</tt></blockquote><p>
+ * Since members may be local objects, entire groups can be simulated in a
+ * single JVM, see the {@link #main main} method.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class Gossip implements Runnable {
+   private static final double LOG10E = 0.4342944819032518;
+   private static final Random random = new Random();
+   private static final class Member { // the heartbeat history of a member
+      private final long intervals[] = new long[32];
+      private long beat, time;
+      private int count;
+      private boolean dead;
+      private Member(long beat, long time) {
+         this.beat = beat;
+         this.time = time;
+      }
+      private void heard(long beat, long time) {
+         intervals[count++ % intervals.length] = time - this.time;
+         this.beat = beat;
+         this.time = time;
+      }
+      private double phi(long now, long min) {
+         int n = Math.min(count, intervals.length);
+         long sum = 0;
+         for (int i = 0; i < n; i++) sum += intervals[i];
+         double mean = n > 0 ? (double)sum / n : min;
+         if (mean < min) mean = min;
+         return (now - time) / mean * LOG10E; // exponential arrivals
+      }
+   }
+   private final HashMap members = new HashMap();
+   private long beat;
+   private Thread thread;
+   /**
+    * The reference by which this member is known to the others.
+    */
+   public final Object self;
+   /**
+    * The object, local or remote, notified of member failures and
+    * recoveries. It may be null.
+    */
+   public final Object listener;
+   /**
+    * The time in milliseconds between heartbeats. By default it is one
+    * second.
+    */
+   public long interval = 1000L;
+   /**
+    * The number of members to which each heartbeat is sent. By default it
+    * is 2.
+    */
+   public int fanout = 2;
+   /**
+    * The level of suspicion at which a member is declared dead. A phi of 1
+    * corresponds to a 10% chance of a mistaken declaration, 2 to a 1%
+    * chance, and so on. By default it is 8.
+    */
+   public double threshold = 8;
+   /**
+    * The constructor creates the detector, it must be started to begin
+    * exchanging heartbeats.
+    * @param self The reference by which this member is known to others, if
+    * null, this instance itself
+    * @param listener The object to be notified of member failures and
+    * recoveries, it may be null
+    */
+   public Gossip(Object self, Object listener) {
+      this.self = self != null ? self : this;
+      this.listener = listener;
+   }
+   /**
+    * This method adds a member to the group, if it is not already known. It
+    * is typically used to provide an initial contact, or a member newly
+    * discovered by other means.
+    * @param member The reference to the member
+    */
+   public synchronized void add(Object member) {
+      if (!self.equals(member) && !members.containsKey(member))
+         members.put(member, new Member(0, System.currentTimeMillis()));
+   }
+   /**
+    * This method removes a member from the group, without declaring it dead.
+    * @param member The reference to the member
+    */
+   public synchronized void remove(Object member) { members.remove(member); }
+   private synchronized Object[] table() {
+      ArrayList list = new ArrayList();
+      for (Iterator i = members.keySet().iterator(); i.hasNext();) {
+         Object member = i.next();
+         if (!((Member)members.get(member)).dead) list.add(member);
+      }
+      Object refs[] = new Object[list.size() + 1];
+      long beats[] = new long[refs.length];
+      for (int i = 0; i < list.size(); i++) {
+         refs[i] = list.get(i);
+         beats[i] = ((Member)members.get(refs[i])).beat;
+      }
+      refs[list.size()] = self;
+      beats[list.size()] = beat;
+      return new Object[] { refs, beats };
+   }
+   private void merge(Object refs[], long beats[]) {
+      ArrayList revived = new ArrayList();
+      synchronized(this) {
+         long now = System.currentTimeMillis();
+         for (int i = 0; i < refs.length; i++) {
+            if (self.equals(refs[i])) continue;
+            Member member = (Member)members.get(refs[i]);
+            if (member == null)
+               members.put(refs[i], new Member(beats[i], now));
+            else if (beats[i] > member.beat) {
+               if (member.dead) {
+                  member.dead = false;
+                  member.count = 0;
+                  revived.add(refs[i]);
+               }
+               member.heard(beats[i], now);
+            }
+         }
+      }
+      tell("alive", revived);
+   }
+   private void tell(String method, ArrayList list) {
+      if (listener != null) for (int i = 0; i < list.size(); i++)
+         try { Remote.invoke(listener, method, list.get(i)); }
+         catch(Exception x) { x.printStackTrace(); }
+   }
+   /**
+    * This method is called by other members, to exchange heartbeat tables.
+    * @param refs The references of the members known to the caller
+    * @param beats The latest heartbeat of each member
+    * @return An array of two elements: the references of the members known
+    * to this one, and their latest heartbeats
+    */
+   public Object[] gossip(Object refs[], long beats[]) {
+      if (refs.length != beats.length)
+         throw new IllegalArgumentException("Table length mismatch");
+      merge(refs, beats);
+      return table();
+   }
+   /**
+    * This method reports the suspicion level of a member.
+    * @param member The reference to the member
+    * @return Its phi value, or infinity if it is unknown
+    */
+   public synchronized double phi(Object member) {
+      Member m = (Member)members.get(member);
+      return m != null ? m.phi(System.currentTimeMillis(), interval) :
+         Double.POSITIVE_INFINITY;
+   }
+   /**
+    * This method checks if a member is currently believed to be alive.
+    * @param member The reference to the member
+    * @return true if the member is known, and not declared dead
+    */
+   public synchronized boolean isAlive(Object member) {
+      Member m = (Member)members.get(member);
+      return m != null && !m.dead;
+   }
+   /**
+    * This method provides the members currently believed to be alive,
+    * excluding this one.
+    * @return The references to the live members
+    */
+   public Object[] getMembers() {
+      Object refs[] = (Object[])table()[0];
+      Object members[] = new Object[refs.length - 1];
+      System.arraycopy(refs, 0, members, 0, members.length);
+      return members;
+   }
+   /**
+    * This method starts exchanging heartbeats, on a daemon thread. It has no
+    * effect if already started.
+    */
+   public synchronized void start() {
+      if (thread != null) return;
+      thread = new Thread(this);
+      thread.setDaemon(true);
+      thread.start();
+   }
+   /**
+    * This method stops exchanging heartbeats; to the other members, this
+    * member will appear to have failed.
+    */
+   public synchronized void stop() {
+      if (thread != null) thread.interrupt();
+      thread = null;
+   }
+   /**
+    * This method performs the heartbeat rounds, it is called by the thread
+    * created by the start method, and is not intended to be called directly.
+    */
+   public void run() {
+      try {
+         while(!Thread.currentThread().isInterrupted()) {
+            round();
+            Thread.sleep(interval);
+         }
+      } catch(InterruptedException x) {}
+   }
+   private void round() {
+      Object table[];
+      ArrayList targets = new ArrayList(), dead = new ArrayList();
+      synchronized(this) {
+         if (thread != Thread.currentThread()) return; // stopped
+         beat++;
+         long now = System.currentTimeMillis();
+         for (Iterator i = members.keySet().iterator(); i.hasNext();) {
+            Object ref = i.next();
+            Member member = (Member)members.get(ref);
+            if (member.dead) {
+               if (now - member.time > interval * 600) i.remove();
+            } else if (member.phi(now, interval) > threshold) {
+               member.dead = true;
+               dead.add(ref);
+            } else targets.add(ref);
+         }
+         while(targets.size() > fanout)
+            targets.remove(random.nextInt(targets.size()));
+         table = table();
+      }
+      tell("dead", dead);
+      for (int i = 0; i < targets.size(); i++) {
+         final Object target = targets.get(i);
+         final Object args = table;
+         Thread thread = new Thread() { // a slow member must not stall us
+            public void run() {
+               try {
+                  Object reply[] = (Object[])
+                     Remote.invoke(target, "gossip", args);
+                  merge((Object[])reply[0], (long[])reply[1]);
+               } catch(NoSuchMethodException x) { remove(target); }
+               catch(Exception x) {} // the detector will judge
+            }
+         };
+         thread.setDaemon(true);
+         thread.start();
+      }
+   }
+   /**
+    * This method simulates a group of members in a single JVM, to observe
+    * the convergence of membership, and the detection of a failure. Each
+    * member is initially aware only of the first. Once all members know of
+    * each other, the last one is stopped, and the time taken for the others
+    * to declare it dead is reported. It takes one optional argument: the
+    * number of members to simulate, by default 32.
+    * @param args The number of members to simulate
+    * @throws Exception If the simulation is interrupted
+    */
+   public static void main(String args[]) throws Exception {
+      int size = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+      final int detected[] = new int[1];
+      Object listener = new Object() {
+         public void dead(Object member) {
+            synchronized(detected) { detected[0]++; detected.notifyAll(); }
+         }
+         public void alive(Object member) {}
+      };
+      Gossip nodes[] = new Gossip[size];
+      for (int i = 0; i < size; i++) {
+         nodes[i] = new Gossip(null, i < size - 1 ? listener : null);
+         nodes[i].interval = 100L;
+         if (i > 0) nodes[i].add(nodes[0]);
+      }
+      long time = System.currentTimeMillis();
+      for (int i = 0; i < size; i++) nodes[i].start();
+      for (int i = 0; i < size; i++)
+         while(nodes[i].getMembers().length < size - 1) Thread.sleep(10);
+      System.out.println(size + " members converged in " +
+         (System.currentTimeMillis() - time) + "ms");
+      time = System.currentTimeMillis();
+      nodes[size - 1].stop();
+      synchronized(detected) {
+         while(detected[0] < size - 1) detected.wait();
+      }
+      System.out.println("failure detected by all in " +
+         (System.currentTimeMillis() - time) + "ms");
+      System.exit(0);
+   }
+}
\ No newline at end of file
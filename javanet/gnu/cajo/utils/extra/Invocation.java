@@ -0,0 +1,99 @@
+package gnu.cajo.utils.extra;
+
+/*
+ * Invocation Identity
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file Invocation.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This internal use only class identifies an invocation by its method name,
+ * and the values of its arguments. Two invocations are equal, if their
+ * method names are equal, and their arguments are equal, element by element.
+ * It is used as a key by the classes caching, or combining, invocations.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+final class Invocation {
+   private static final Object NOARGS[] = {};
+   private final int hash;
+   /**
+    * The name of the method being invoked.
+    */
+   final String method;
+   /**
+    * The arguments to the method, never null.
+    */
+   final Object args[];
+   /**
+    * The constructor normalises the arguments, in the same way as the
+    * static invoke method of gnu.cajo.invoke.Remote.
+    * @param method The name of the method being invoked
+    * @param args The argument(s) to the method, it can be null, a single
+    * object, or an array of objects
+    */
+   Invocation(String method, Object args) {
+      this.method = method;
+      this.args = args instanceof Object[] ? (Object[])args :
+         args != null ? new Object[] { args } : NOARGS;
+      hash = (method != null ? method.hashCode() : 0) ^ hash(this.args);
+   }
+   private static int hash(Object args[]) {
+      int hash = 1;
+      for (int i = 0; i < args.length; i++) hash = 31 * hash +
+         (args[i] instanceof Object[] ? hash((Object[])args[i]) :
+         args[i] != null ? args[i].hashCode() : 0);
+      return hash;
+   }
+   private static boolean equals(Object a, Object b) {
+      if (a instanceof Object[] && b instanceof Object[]) {
+         Object x[] = (Object[])a, y[] = (Object[])b;
+         if (x.length != y.length) return false;
+         for (int i = 0; i < x.length; i++)
+            if (!equals(x[i], y[i])) return false;
+         return true;
+      } else return a == null ? b == null : a.equals(b);
+   }
+   /**
+    * This method checks if this invocation is of the method provided, and
+    * if its leading arguments are equal to those provided.
+    * @param method The name of the method
+    * @param prefix The leading arguments, it can be null, a single object,
+    * or an array of objects
+    * @return true if the invocation matches
+    */
+   boolean startsWith(String method, Object prefix) {
+      if (this.method == null || !this.method.equals(method)) return false;
+      Object p[] = prefix instanceof Object[] ? (Object[])prefix :
+         prefix != null ? new Object[] { prefix } : NOARGS;
+      if (p.length > args.length) return false;
+      for (int i = 0; i < p.length; i++)
+         if (!equals(p[i], args[i])) return false;
+      return true;
+   }
+   public boolean equals(Object o) {
+      if (!(o instanceof Invocation)) return false;
+      Invocation i = (Invocation)o;
+      return hash == i.hash && (method == null ? i.method == null :
+         method.equals(i.method)) && equals(args, i.args);
+   }
+   public int hashCode() { return hash; }
+}
@@ -0,0 +1,302 @@
+package gnu.cajo.utils.extra;
+
+import gnu.cajo.Grail;
+import gnu.cajo.invoke.*;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/*
+ * Consistent Hash Invocation Router
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file KeyRouter.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used to route invocations among the replicas of a service,
+ * found through a {@link gnu.cajo.Grail Grail} registry, such as {@link
+ * gnu.cajo.Cajo Cajo}. Each invocation is sent to a replica chosen by the
+ * value of one of its arguments, its <i>key</i>; invocations with equal keys
+ * will therefore reach the same replica, wherever it might hold the state,
+ * or the cached data, associated with the key. Each replica need hold only
+ * its share of the keys.<p>
+ * The replicas are placed on a ring of hash values, at many points each,
+ * known as <i>virtual nodes;</i> a key is served by the replica at the first
+ * point following the hash of the key. When replicas appear or disappear,
+ * only the keys of the affected points move, the others remain with their
+ * replicas. The replicas are looked up again periodically, and immediately
+ * when one fails to respond; its keys are then served by the replicas
+ * following it on the ring. The invocation is retried there once.<p>
+ * The points of a replica are computed from the endpoint and object
+ * identifier of its remote reference, which are the same in every JVM; when
+ * two points collide, the replica with the lower identity takes it. All
+ * clients therefore route keys identically. For the same reason, keys are
+ * hashed by their contents, rather than by their hashCode, which may differ
+ * between JVMs: strings by their characters, byte arrays by their bytes,
+ * boxed primitives by their text, and other keys by their serialised form;
+ * which must therefore be the same for all equal keys.<p>
+ * Typically a router would be used as the item of a {@link
+ * TransparentItemProxy TransparentItemProxy}, for the same interface it was
+ * created.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class KeyRouter implements Invoke {
+   private static final long serialVersionUID = 1L;
+   private final TreeMap ring = new TreeMap();
+   private final HashMap ids = new HashMap(); // replica -> identity
+   private transient long looked;
+   private transient boolean looking;
+   /**
+    * The registry in which the replicas are looked up.
+    */
+   public final Grail grail;
+   /**
+    * The method set interface the replicas are required to support.
+    */
+   public final Class methodSetInterface;
+   /**
+    * The index of the argument whose value is the key of an invocation.
+    * Invocations having fewer arguments are routed by the name of the
+    * method.
+    */
+   public final int index;
+   /**
+    * The number of points on the ring for each replica. The more points,
+    * the more evenly the keys will be divided among the replicas.
+    */
+   public final int vnodes;
+   /**
+    * The time in milliseconds between lookups of the replicas. By default
+    * it is 30 seconds.
+    */
+   public long refresh = 30000L;
+   /**
+    * The constructor looks up the replicas, and places them on the ring.
+    * @param grail The registry in which to look up the replicas
+    * @param methodSetInterface The interface the replicas must support
+    * @param index The index of the key argument of the invocations,
+    * typically 0
+    * @param vnodes The number of ring points for each replica, typically
+    * in the order of 100
+    * @throws Exception If the lookup failed, for network reasons
+    */
+   public KeyRouter(Grail grail, Class methodSetInterface, int index,
+      int vnodes) throws Exception {
+      if (vnodes < 1) throw new IllegalArgumentException("Invalid vnodes");
+      this.grail = grail;
+      this.methodSetInterface = methodSetInterface;
+      this.index = index;
+      this.vnodes = vnodes;
+      update(grail.lookup(methodSetInterface));
+   }
+   /**
+    * This method mixes the bits of a hash, so that similar keys are spread
+    * evenly around the ring.
+    */
+   private static long mix(long hash) {
+      hash ^= hash >>> 33;
+      hash *= 0xff51afd7ed558ccdL;
+      hash ^= hash >>> 33;
+      hash *= 0xc4ceb9fe1a85ec53L;
+      return hash ^ hash >>> 33;
+   }
+   /**
+    * This method computes a 64 bit FNV-1a hash of a string.
+    */
+   private static long hash(String s) {
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < s.length(); i++) {
+         hash ^= s.charAt(i);
+         hash *= 0x100000001b3L;
+      }
+      return mix(hash);
+   }
+   /**
+    * This method computes a 64 bit FNV-1a hash of a byte array.
+    */
+   private static long hash(byte b[]) {
+      long hash = 0xcbf29ce484222325L;
+      for (int i = 0; i < b.length; i++) {
+         hash ^= b[i] & 0xff;
+         hash *= 0x100000001b3L;
+      }
+      return mix(hash);
+   }
+   /**
+    * This method hashes a key by its contents, identically in every JVM.
+    */
+   private static long key(Object key) {
+      if (key == null) return mix(0);
+      if (key instanceof String) return hash((String)key);
+      if (key instanceof byte[]) return hash((byte[])key);
+      if (key instanceof Number || key instanceof Character ||
+         key instanceof Boolean) return hash(key.toString());
+      try {
+         ByteArrayOutputStream baos = new ByteArrayOutputStream();
+         ObjectOutputStream oos = new ObjectOutputStream(baos);
+         oos.writeObject(key);
+         oos.close();
+         return hash(baos.toByteArray());
+      } catch(IOException x) {
+         throw new IllegalArgumentException("Key not serialisable: " + x);
+      }
+   }
+   /**
+    * This method computes the identity of a replica, identically in every
+    * JVM: the serialised form of its remote reference, which holds its
+    * endpoint and object identifier. The toString of a reference will not
+    * do, it differs between the exporting JVM and its clients.
+    */
+   private static String identity(Object replica) {
+      try {
+         Object stub = replica;
+         if (stub instanceof java.rmi.Remote &&
+            !(stub instanceof java.rmi.server.RemoteStub) &&
+            !java.lang.reflect.Proxy.isProxyClass(stub.getClass()))
+            stub = java.rmi.server.RemoteObject.toStub((java.rmi.Remote)stub);
+         if (java.lang.reflect.Proxy.isProxyClass(stub.getClass()))
+            stub = java.lang.reflect.Proxy.getInvocationHandler(stub);
+         if (stub instanceof java.rmi.server.RemoteObject) {
+            java.rmi.server.RemoteRef ref =
+               ((java.rmi.server.RemoteObject)stub).getRef();
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(baos);
+            oos.writeUTF(ref.getRefClass(oos));
+            ref.writeExternal(oos);
+            oos.close();
+            return new String(baos.toByteArray(), "ISO-8859-1");
+         }
+      } catch(IOException x) {} // not exported, or not a remote reference
+      return replica.getClass().getName() + '@' +
+         Long.toHexString(key(replica));
+   }
+   /**
+    * This method places the points of all replicas on the ring. Where two
+    * points collide, the replica of the lower identity takes it; so that
+    * the ring depends only on the replicas, not on the order found.
+    */
+   private void place() {
+      ring.clear();
+      for (Iterator i = ids.keySet().iterator(); i.hasNext();) {
+         Object replica = i.next();
+         String id = (String)ids.get(replica);
+         for (int j = 0; j < vnodes; j++) {
+            Long point = new Long(hash(id + '#' + j));
+            Object other = ring.get(point);
+            if (other == null || id.compareTo((String)ids.get(other)) < 0)
+               ring.put(point, replica);
+         }
+      }
+   }
+   /**
+    * This method places the replicas found on the ring, adding the points
+    * of new replicas, and removing those of replicas no longer found.
+    */
+   private synchronized void update(Object replicas[]) {
+      HashSet found = new HashSet();
+      for (int i = 0; i < replicas.length; i++) found.add(replicas[i]);
+      ids.keySet().retainAll(found);
+      for (int i = 0; i < replicas.length; i++)
+         if (!ids.containsKey(replicas[i]))
+            ids.put(replicas[i], identity(replicas[i]));
+      place();
+      looked = System.currentTimeMillis();
+   }
+   /**
+    * This method removes the points of a replica, which failed to respond.
+    */
+   private synchronized void remove(Object replica) {
+      if (ids.remove(replica) != null) place();
+      looked = 0; // look up again on the next invocation
+   }
+   /**
+    * This method looks up the replicas again, on a separate thread, if the
+    * refresh time has elapsed.
+    */
+   private void refresh() {
+      synchronized(this) {
+         if (looking || System.currentTimeMillis() - looked < refresh) return;
+         looking = true;
+      }
+      Thread thread = new Thread() {
+         public void run() {
+            try { update(grail.lookup(methodSetInterface)); }
+            catch(Exception x) {} // try again later
+            finally { synchronized(KeyRouter.this) { looking = false; } }
+         }
+      };
+      thread.setDaemon(true);
+      thread.start();
+   }
+   /**
+    * This method selects the replica serving a key.
+    * @param key The key, it may be null, otherwise it must be a string, a
+    * byte array, a boxed primitive, or serialisable
+    * @return The reference to the replica, or null if none are known
+    */
+   public synchronized Object route(Object key) {
+      if (ring.isEmpty()) return null;
+      Long hash = new Long(key(key));
+      SortedMap tail = ring.tailMap(hash);
+      return tail.isEmpty() ? ring.get(ring.firstKey()) :
+         tail.get(tail.firstKey());
+   }
+   /**
+    * This method sends the invocation to the replica serving its key. If
+    * the replica does not respond, the invocation is sent to the next one.
+    * @param method The replica's public method being called.
+    * @param args The arguments to pass to the method.
+    * @return The sychronous data, if any, resulting from the invocation.
+    * @throws java.rmi.ConnectException If no replicas are known.
+    * @throws RemoteException For a network related failure.
+    * @throws NoSuchMethodException If the method/agruments signature cannot
+    * be matched to the replica's public method interface.
+    * @throws Exception If the replica's method rejects the invocation.
+    */
+   public Object invoke(String method, Object args) throws Exception {
+      refresh();
+      Object key = method;
+      if (args instanceof Object[]) {
+         if (((Object[])args).length > index) key = ((Object[])args)[index];
+      } else if (args != null && index == 0) key = args;
+      for (int i = 0; ; i++) {
+         Object replica = route(key);
+         if (replica == null)
+            throw new java.rmi.ConnectException("No replicas found");
+         try { return Remote.invoke(replica, method, args); }
+         catch(IOException x) {
+            remove(replica);
+            if (i > 0) throw x;
+         }
+      }
+   }
+   /**
+    * This method reports the number of replicas on the ring.
+    * @return The number of replicas
+    */
+   public synchronized int size() { return ids.size(); }
+}
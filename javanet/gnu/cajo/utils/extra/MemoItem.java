@@ -0,0 +1,264 @@
+package gnu.cajo.utils.extra;
+
+import gnu.cajo.invoke.*;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.LinkedHashMap;
+
+/*
+ * Item Result Memoizer
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file MemoItem.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used to transparently cache the results of chosen methods
+ * of any given object reference. It is intended for idempotent, read-mostly
+ * methods, which are expensive to compute; for example, ones querying a
+ * database. A result is cached by the name of the method, and the values
+ * of its arguments, for a limited time. The least recently used results
+ * will be discarded, when the cache is full. Invocations resulting in an
+ * exception are never cached. The wrapped object is unaware, and need not
+ * be changed, to assist in this functionality.<p>
+ * When the state of the wrapped object changes, the server should invoke
+ * one of the invalidate methods of this wrapper, to discard the affected
+ * results.<p>
+ * Clients may also cache results locally, in a near cache, as is done by
+ * {@link TransparentItemProxy TransparentItemProxy}. Such clients invoke
+ * <tt>addInvalidationListener</tt> on this wrapper, with a reference to an
+ * object implementing a method of the signature:<p>
+ * <blockquote><tt>
+ * public void invalidate(String method, Object prefix);</tt></blockquote><p>
+ * Each invalidation of this wrapper will be pushed to its listeners,
+ * <i>before</i> the invalidate method returns. A null method indicates all
+ * results are to be discarded. Listeners which cannot be reached, in three
+ * attempts, are removed automatically. As such a listener has missed an
+ * invalidation, <tt>addInvalidationListener</tt> returns true when adding
+ * a listener which was not registered; a client periodically registering
+ * its listener again can thereby tell when to discard its near cache.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public class MemoItem implements Invoke {
+   private static final long serialVersionUID = 1L;
+   private static final class Entry { // a cached result, and its expiry
+      private final Object result;
+      private final long expiry;
+      private Entry(Object result, long expiry) {
+         this.result = result;
+         this.expiry = expiry;
+      }
+   }
+   private final HashSet methods;
+   private transient LinkedHashMap cache;
+   private transient LinkedList listeners;
+   private long hits, misses, generation;
+   /**
+    * This is the object whose results are to be cached. It is declared as
+    * public to allow the reference of the MemoItem, and its wrapped object,
+    * from a single instance of MemoItem.
+    */
+   public final Object item;
+   /**
+    * The maximum number of results to be cached.
+    */
+   public final int size;
+   /**
+    * The time in milliseconds a result remains valid, following its
+    * invocation.
+    */
+   public final long ttl;
+   /**
+    * This creates the object, to cache the target object's results.
+    * @param item The object to receive the client invocations. It can be
+    * local, remote, or even a proxy.
+    * @param methods The names of the methods whose results are to be
+    * cached, all other invocations are passed directly to the item.
+    * @param size The maximum number of results to be cached, when full the
+    * least recently used result will be discarded.
+    * @param ttl The time in milliseconds a result will remain valid.
+    */
+   public MemoItem(Object item, String methods[], int size, long ttl) {
+      if (size < 1) throw new IllegalArgumentException("Invalid size");
+      this.item = item;
+      this.methods = new HashSet(Arrays.asList(methods));
+      this.size = size;
+      this.ttl = ttl;
+   }
+   private LinkedHashMap cache() { // must be called holding the lock
+      if (cache == null) cache = new LinkedHashMap(16, .75F, true) {
+         private static final long serialVersionUID = 1L;
+         protected boolean removeEldestEntry(java.util.Map.Entry eldest) {
+            return size() > MemoItem.this.size;
+         }
+      };
+      return cache;
+   }
+   /**
+    * This method returns the result of an invocation from the cache, if
+    * it is present, and has not expired. Otherwise the invocation is passed
+    * to the wrapped item, and its result will be cached. <i>Note:</i> this
+    * method can be called reentrantly.
+    * @param method The internal object's public method being called.
+    * @param  args The arguments to pass to the internal object's method.
+    * @return The sychronous data, if any, resulting from the invocation.
+    * @throws RemoteException For a network related failure.
+    * @throws NoSuchMethodException If the method/agruments signature cannot
+    * be matched to the internal object's public method interface.
+    * @throws Exception If the internal object's method rejects the
+    * invocation.
+    */
+   public Object invoke(String method, Object args) throws Exception {
+      if (!methods.contains(method)) {
+         Object arg = args instanceof Object[] &&
+            ((Object[])args).length == 1 ? ((Object[])args)[0] : args;
+         if (arg != null && method.equals("addInvalidationListener")) {
+            return addInvalidationListener(arg) ? Boolean.TRUE : Boolean.FALSE;
+         } else if (arg != null && method.equals("removeInvalidationListener")) {
+            removeInvalidationListener(arg);
+            return null;
+         }
+         return Remote.invoke(item, method, args);
+      }
+      Invocation key = new Invocation(method, args);
+      long version;
+      synchronized(this) {
+         Entry entry = (Entry)cache().get(key);
+         if (entry != null) {
+            if (entry.expiry > System.currentTimeMillis()) {
+               hits++;
+               return entry.result;
+            } else cache.remove(key);
+         }
+         misses++;
+         version = generation;
+      }
+      Object result = Remote.invoke(item, method, args);
+      synchronized(this) { // do not cache if invalidated meanwhile
+         if (version == generation) cache().put(key,
+            new Entry(result, System.currentTimeMillis() + ttl));
+      }
+      return result;
+   }
+   /**
+    * This method discards all cached results.
+    */
+   public void invalidate() {
+      synchronized(this) {
+         generation++;
+         cache().clear();
+      }
+      push(null, null);
+   }
+   /**
+    * This method discards all cached results of a method.
+    * @param method The name of the method
+    */
+   public void invalidate(String method) { invalidate(method, null); }
+   /**
+    * This method discards all cached results of a method, whose leading
+    * arguments are equal to those provided.
+    * @param method The name of the method
+    * @param prefix The leading arguments; it can be null, to match all
+    * invocations of the method, a single object, or an array of objects
+    */
+   public void invalidate(String method, Object prefix) {
+      synchronized(this) {
+         generation++;
+         for (Iterator i = cache().keySet().iterator(); i.hasNext();)
+            if (((Invocation)i.next()).startsWith(method, prefix)) i.remove();
+      }
+      push(method, prefix);
+   }
+   /**
+    * This method pushes an invalidation to all listeners, removing those
+    * which fail to respond. A network failure is retried twice, as it may
+    * be only a broken connection.
+    */
+   private void push(String method, Object prefix) {
+      Object list[];
+      synchronized(this) {
+         if (listeners == null || listeners.isEmpty()) return;
+         list = listeners.toArray();
+      }
+      Object args[] = { method, prefix };
+      for (int i = 0; i < list.length; i++)
+         for (int j = 1; ; j++) try {
+            Remote.invoke(list[i], "invalidate", args);
+            break;
+         } catch(IOException x) {
+            if (j == 3) {
+               removeInvalidationListener(list[i]);
+               break;
+            }
+            try { Thread.sleep(50L * j); }
+            catch(InterruptedException ix) {}
+         } catch(Exception x) {
+            removeInvalidationListener(list[i]);
+            break;
+         }
+   }
+   /**
+    * This method adds an object to be notified of all invalidations. It
+    * can be called remotely, typically by a near caching client; and
+    * again periodically, to check that the listener has not been removed.
+    * @param listener The object, usually remote, implementing a public
+    * invalidate(String method, Object prefix) method
+    * @return true if the listener was not registered, i.e. it is new, or
+    * it was removed after failing to respond, and may have missed
+    * invalidations
+    */
+   public synchronized boolean addInvalidationListener(Object listener) {
+      if (listeners == null) listeners = new LinkedList();
+      if (listeners.contains(listener)) return false;
+      listeners.add(listener);
+      return true;
+   }
+   /**
+    * This method removes an invalidation listener.
+    * @param listener The object no longer wishing to be notified
+    */
+   public synchronized void removeInvalidationListener(Object listener) {
+      if (listeners != null) listeners.remove(listener);
+   }
+   /**
+    * This method reports the number of invocations answered from the cache.
+    * @return The number of cache hits
+    */
+   public synchronized long getHits() { return hits; }
+   /**
+    * This method reports the number of invocations of cached methods, which
+    * had to be passed to the wrapped item.
+    * @return The number of cache misses
+    */
+   public synchronized long getMisses() { return misses; }
+   /**
+    * This method reports the fraction of invocations of cached methods,
+    * answered from the cache.
+    * @return The hit rate, between 0 and 1
+    */
+   public synchronized double getHitRate() {
+      return hits + misses > 0 ? (double)hits / (hits + misses) : 0;
+   }
+}
@@ -0,0 +1,161 @@
+package gnu.cajo.utils.extra;
+
+import gnu.cajo.Service;
+import gnu.cajo.invoke.*;
+import java.rmi.MarshalledObject;
+
+/*
+ * Migrating Item Wrapper
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file Migrant.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used to move a running item from one JVM to another,
+ * without its clients noticing; for example to move a busy item off of an
+ * overloaded server. Like a {@link DynamicObject DynamicObject}, it gives
+ * clients a single remote reference, behind which the item can be changed;
+ * in this case, by moving the item elsewhere, and forwarding to it.<p>
+ * On migration, new invocations are held, until those already in progress
+ * have completed. The item's serialisable state is then captured, and sent
+ * to the target JVM, in a new migrant, by the target service's {@link
+ * gnu.cajo.Service#sendProxy sendProxy} method. The target would typically
+ * implement sendProxy as follows:<p>
+ * <blockquote><tt>
+ * public Object sendProxy(Proxy proxy) {<br>
+ * &nbsp;&nbsp;proxy.init(this);<br>
+ * &nbsp;&nbsp;return new Remote(proxy);<br>
+ * }</tt></blockquote><p>
+ * and may keep the proxy, itself a migrant, to move the item on again later.
+ * Once the item is running at the target, the held invocations, and all
+ * later ones, are forwarded to it. The remote reference returned by the
+ * migrate method can be registered in place of the original, so that new
+ * clients bind to the item directly.<p>
+ * <i>Note:</i> the item must be serialisable, and its classes available to
+ * the target JVM. Its transient state is not moved; if the item is itself a
+ * {@link gnu.cajo.Service.Proxy Proxy}, it is initialised with the target
+ * service on arrival, to reacquire it.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class Migrant implements Invoke, Service.Proxy {
+   private static final long serialVersionUID = 1L;
+   private MarshalledObject snapshot;
+   private transient Object object;
+   private transient int active;
+   private transient boolean moving, moved;
+   private Migrant(MarshalledObject snapshot) { this.snapshot = snapshot; }
+   /**
+    * The constructor wraps an item, to allow it to be migrated.
+    * @param item The item to wrap, it must be serialisable
+    */
+   public Migrant(Object item) { object = item; }
+   /**
+    * This method is called by the target service, on receiving the
+    * migrant. It restores the item, and is not intended to be called
+    * directly.
+    * @param service A reference to the target service
+    */
+   public void init(Object service) {
+      try {
+         Object item = snapshot.get();
+         if (item instanceof Service.Proxy)
+            ((Service.Proxy)item).init(service);
+         synchronized(this) {
+            object = item;
+            snapshot = null;
+            notifyAll();
+         }
+      } catch(Exception x) {
+         throw new IllegalStateException("Item could not be restored: " + x);
+      }
+   }
+   /**
+    * This method passes the invocation to the item, or wherever it has
+    * been moved. Invocations arriving during migration are held until it
+    * has completed.
+    * @param method The method name to be invoked on the item.
+    * @param args The arguments to provide to the method for its invocation.
+    * @return The resulting data, if any, from the invocation.
+    * @throws IllegalStateException If the item has not yet been restored.
+    * @throws java.rmi.RemoteException If the item has been moved, and the
+    * target JVM could not be reached.
+    * @throws NoSuchMethodException If no matching method can be found.
+    * @throws Exception If the item rejected the invocation, for application
+    * specific reasons.
+    */
+   public Object invoke(String method, Object args) throws Exception {
+      Object item;
+      synchronized(this) {
+         while(moving) wait();
+         if (object == null)
+            throw new IllegalStateException("Item not yet restored");
+         item = object;
+         active++;
+      }
+      try { return Remote.invoke(item, method, args); }
+      finally {
+         synchronized(this) {
+            active--;
+            notifyAll();
+         }
+      }
+   }
+   /**
+    * This method moves the item to the JVM of another service. It waits for
+    * invocations in progress to complete, and holds new ones, until the
+    * item is running at the target. If the migration fails, the item
+    * remains here. An item already moved can only be moved again by the
+    * migrant at its current location.
+    * @param service The reference to the target service, typically remote,
+    * which must accept proxies
+    * @return The remote reference to the item, at the target JVM
+    * @throws IllegalStateException If the item is not here to be moved
+    * @throws java.io.NotSerializableException If the item is not
+    * serialisable
+    * @throws ClassNotFoundException If the target does not accept proxies
+    * @throws Exception If the target could not be reached, or rejected the
+    * migrant, for application specific reasons
+    */
+   public Object migrate(Object service) throws Exception {
+      synchronized(this) {
+         while(moving) wait();
+         if (moved || object == null)
+            throw new IllegalStateException("Item not here");
+         moving = true;
+         while(active > 0) wait();
+      }
+      try {
+         Migrant migrant = new Migrant(new MarshalledObject(object));
+         Object item = Remote.invoke(service, "sendProxy", migrant);
+         synchronized(this) {
+            object = item;
+            moved = true;
+         }
+         return item;
+      } finally {
+         synchronized(this) {
+            moving = false;
+            notifyAll();
+         }
+      }
+   }
+}
@@ -0,0 +1,278 @@
+package gnu.cajo.utils.extra;
+
+import gnu.cajo.invoke.*;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Virtual Object Multiplexer
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file Multiplexer.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used to serve a great many objects, for example one per
+ * session, or per entity, through a single remote reference. Each object
+ * remoted separately has its own stub, distributed garbage collection
+ * lease, and entry in the RMI object table; at the scale of millions, this
+ * becomes costly. Instead, the multiplexer is remoted once, and clients are
+ * given {@link Handle Handles}: small serialisable objects, carrying the
+ * multiplexer's reference, and the <i>id</i> of the object they represent.
+ * <p>
+ * The objects are created when first invoked, by a {@link Factory
+ * Factory}. Objects not invoked for the idle time, and with no invocations
+ * in progress, are discarded, after being passed to the factory, for
+ * example to save their state; they will be created again if invoked
+ * later. Invocations arriving while an object is being discarded wait for
+ * it to have been, so there is never more than one instance of an id.
+ * Typically a handle would be used as the item of a {@link
+ * TransparentItemProxy TransparentItemProxy}.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class Multiplexer implements Invoke {
+   private static final long serialVersionUID = 1L;
+   private static final class Call implements java.io.Serializable {
+      private static final long serialVersionUID = 1L;
+      private final Object id, args;
+      private Call(Object id, Object args) {
+         this.id = id;
+         this.args = args;
+      }
+   }
+   /**
+    * This interface defines the creation, and discarding, of the objects
+    * of a multiplexer.
+    */
+   public interface Factory {
+      /**
+       * This method creates an object, when it is first invoked, or first
+       * invoked after having been discarded.
+       * @param id The id of the object
+       * @return The object, null if there is no object of the id
+       * @throws Exception If the object could not be created, the
+       * invocation fails
+       */
+      Object create(Object id) throws Exception;
+      /**
+       * This method is called with each object discarded, for not having
+       * been invoked for the idle time.
+       * @param id The id of the object
+       * @param object The object
+       */
+      void evict(Object id, Object object);
+   }
+   private static final class Slot { // a created object, or one being so
+      private Object object;
+      private volatile long used;
+      private int calls; // in progress
+      private boolean dead; // discarded, or never created
+   }
+   /**
+    * This class is the client reference to an object of a multiplexer. It
+    * sends all invocations to the multiplexer, identifying the object.
+    */
+   public static final class Handle implements Invoke {
+      private static final long serialVersionUID = 1L;
+      /**
+       * The reference to the multiplexer, typically remote.
+       */
+      public final Object dispatcher;
+      /**
+       * The id of the object represented.
+       */
+      public final Object id;
+      /**
+       * The constructor creates a handle, to an object of a multiplexer.
+       * @param dispatcher The reference to the multiplexer
+       * @param id The id of the object
+       */
+      public Handle(Object dispatcher, Object id) {
+         this.dispatcher = dispatcher;
+         this.id = id;
+      }
+      /**
+       * This method sends the invocation to the object, via its
+       * multiplexer.
+       * @param method The object's public method being called.
+       * @param args The arguments to pass to the method.
+       * @return The sychronous data, if any, resulting from the invocation.
+       * @throws java.rmi.RemoteException For a network related failure.
+       * @throws NoSuchMethodException If the method/agruments signature
+       * cannot be matched to the object's public method interface.
+       * @throws Exception If the object's method rejects the invocation.
+       */
+      public Object invoke(String method, Object args) throws Exception {
+         return Remote.invoke(dispatcher, method, new Call(id, args));
+      }
+      public boolean equals(Object o) {
+         return o instanceof Handle && ((Handle)o).id.equals(id) &&
+            ((Handle)o).dispatcher.equals(dispatcher);
+      }
+      public int hashCode() { return id.hashCode(); }
+      public String toString() { return "Handle[" + id + ']'; }
+   }
+   private final LinkedHashMap slots = new LinkedHashMap(16, .75f, true);
+   private transient Thread sweeper;
+   /**
+    * The factory creating, and discarding, the objects.
+    */
+   public final Factory factory;
+   /**
+    * The time in milliseconds after which an object not invoked is
+    * discarded. By default it is 5 minutes.
+    */
+   public long idle = 300000L;
+   /**
+    * The remote reference to this multiplexer, to which clients' handles
+    * send their invocations.
+    */
+   public final Remote remote;
+   /**
+    * The constructor creates and remotes the multiplexer.
+    * @param factory The factory of the objects
+    * @throws RemoteException If the multiplexer could not be remoted
+    */
+   public Multiplexer(Factory factory) throws RemoteException {
+      this.factory = factory;
+      remote = new Remote(this);
+   }
+   /**
+    * This method provides a client reference to an object. The object is
+    * not created until it is invoked.
+    * @param id The id of the object, it must be serialisable, and properly
+    * implement equals and hashCode
+    * @return The handle to the object
+    */
+   public Handle handle(Object id) { return new Handle(remote, id); }
+   private void remove(Object id, Slot slot) {
+      synchronized(slots) { if (slots.get(id) == slot) slots.remove(id); }
+   }
+   private Slot acquire(Object id) throws Exception { // the slot of a call
+      while(true) {
+         Slot slot;
+         synchronized(slots) {
+            slot = (Slot)slots.get(id);
+            if (slot == null) {
+               slot = new Slot();
+               slots.put(id, slot);
+            }
+            slot.used = System.currentTimeMillis();
+            if (sweeper == null) sweep();
+         }
+         synchronized(slot) { // create it, only once
+            if (!slot.dead) {
+               if (slot.object == null) {
+                  try { slot.object = factory.create(id); }
+                  finally { slot.dead = slot.object == null; }
+                  if (slot.dead) { // don't keep it
+                     remove(id, slot);
+                     throw new IllegalArgumentException("No object for " + id);
+                  }
+               }
+               slot.calls++;
+               return slot;
+            }
+         }
+         remove(id, slot); // discarded meanwhile, create it anew
+      }
+   }
+   private void evict(Object id, Slot slot) {
+      synchronized(slot) { // no calls can start, or be in progress
+         if (slot.dead || slot.calls > 0 ||
+            slot.used >= System.currentTimeMillis() - idle) return;
+         slot.dead = true;
+         try { factory.evict(id, slot.object); }
+         catch(RuntimeException x) { x.printStackTrace(); }
+      }
+      remove(id, slot);
+   }
+   private void sweep() { // start discarding idle objects
+      sweeper = new Thread() {
+         public void run() {
+            try {
+               while(true) {
+                  Object ids[];
+                  Slot idled[];
+                  long wait;
+                  synchronized(slots) { // eldest first, by access order
+                     long time = System.currentTimeMillis() - idle;
+                     int n = 0;
+                     Iterator i = slots.entrySet().iterator();
+                     while(i.hasNext() && ((Slot)((Map.Entry)i.next()).
+                        getValue()).used < time) n++;
+                     ids = new Object[n];
+                     idled = new Slot[n];
+                     i = slots.entrySet().iterator();
+                     for (int j = 0; j < n; j++) {
+                        Map.Entry entry = (Map.Entry)i.next();
+                        ids[j] = entry.getKey();
+                        idled[j] = (Slot)entry.getValue();
+                     }
+                  }
+                  for (int j = 0; j < ids.length; j++) evict(ids[j], idled[j]);
+                  synchronized(slots) {
+                     wait = slots.isEmpty() ? idle : ((Slot)slots.values().
+                        iterator().next()).used + idle -
+                           System.currentTimeMillis();
+                  }
+                  Thread.sleep(Math.max(wait, 1000L));
+               }
+            } catch(InterruptedException x) {}
+         }
+      };
+      sweeper.setDaemon(true);
+      sweeper.start();
+   }
+   /**
+    * This method passes an invocation from a handle to its object,
+    * creating it if necessary. <i>Note:</i> this method can be called
+    * reentrantly.
+    * @param method The object's public method being called.
+    * @param args The handle's identified arguments.
+    * @return The sychronous data, if any, resulting from the invocation.
+    * @throws IllegalArgumentException If the invocation did not come from a
+    * handle, or the factory provided no object for the id.
+    * @throws NoSuchMethodException If the method/agruments signature cannot
+    * be matched to the object's public method interface.
+    * @throws Exception If the object's method rejects the invocation.
+    */
+   public Object invoke(String method, Object args) throws Exception {
+      if (!(args instanceof Call))
+         throw new IllegalArgumentException("Invocation without handle");
+      Call call = (Call)args;
+      Slot slot = acquire(call.id);
+      try { return Remote.invoke(slot.object, method, call.args); }
+      finally {
+         synchronized(slot) {
+            slot.calls--;
+            slot.used = System.currentTimeMillis();
+         }
+      }
+   }
+   /**
+    * This method reports the number of objects currently in memory.
+    * @return The number of objects
+    */
+   public int size() { synchronized(slots) { return slots.size(); } }
+}
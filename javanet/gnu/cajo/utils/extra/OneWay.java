@@ -0,0 +1,179 @@
+package gnu.cajo.utils.extra;
+
+import gnu.cajo.invoke.Invoke;
+import gnu.cajo.invoke.Remote;
+import java.util.LinkedList;
+
+/*
+ * One-Way Invocation Dispatcher
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file OneWay.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used to invoke methods on an object, without waiting for
+ * their completion; i.e. <i>fire and forget.</i> It is intended for methods
+ * whose result is of no interest to the caller, for example publishing to
+ * a {@link Queue Queue}, or delivering notifications. Each invocation is
+ * placed on a queue, and returns immediately; a single thread performs the
+ * invocations on the wrapped object, in their original order. Unlike the
+ * {@link AsyncMethod AsyncMethod} class, no thread is created per invocation.
+ * <p>
+ * All of the invocations pending are sent together, in a single round
+ * trip, if the object is wrapped in a {@link BatchItem BatchItem}; so that
+ * invocations made faster than the round trip time are not held up by it.
+ * Otherwise they are sent individually; a number of threads may then be
+ * allowed to send them concurrently, at the cost of their order.<p>
+ * If an invocation fails, and a listener was provided, it will be called
+ * back on a method of the same name as the one invoked, with the resulting
+ * exception as its sole argument; as is done by AsyncMethod. Otherwise the
+ * failure is silently discarded.<p>
+ * <i>Note:</i> java RMI offers no means to send a request without awaiting
+ * its reply; therefore the waiting is done by the dispatching thread, rather
+ * than the caller. If the queue of pending invocations reaches its limit,
+ * callers will block until there is room, to keep fast producers from
+ * exhausting memory.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class OneWay implements Invoke {
+   private static final long serialVersionUID = 1L;
+   private final LinkedList invocations = new LinkedList();
+   private transient int active; // dispatching threads
+   private boolean unbatched;
+   /**
+    * This is the reference to the object, usually remote, on which to
+    * invoke. It works on local objects as well.
+    */
+   public final Object item;
+   /**
+    * This is the reference to the object, local or remote, to be called
+    * back when an invocation fails. (if non-null)
+    */
+   public final Object listener;
+   /**
+    * The maximum number of invocations which may be pending, before callers
+    * will be made to wait.
+    */
+   public final int limit;
+   /**
+    * The number of threads which may send invocations concurrently, to an
+    * object not accepting batches. Above 1, the invocations may be
+    * performed out of order. By default it is 1.
+    */
+   public int threads = 1;
+   /**
+    * The constructor takes any object, and allows its methods to be invoked
+    * one-way, with a limit of 1024 pending invocations.
+    * @param item The object to be invoked. It may be any arbitrary object,
+    * of any type, local or remote.
+    * @param listener The object to call back if an invocation fails, it
+    * may be null.
+    */
+   public OneWay(Object item, Object listener) { this(item, listener, 1024); }
+   /**
+    * The constructor takes any object, and allows its methods to be invoked
+    * one-way.
+    * @param item The object to be invoked. It may be any arbitrary object,
+    * of any type, local or remote.
+    * @param listener The object to call back if an invocation fails, it
+    * may be null.
+    * @param limit The maximum number of invocations pending, before callers
+    * are made to wait
+    */
+   public OneWay(Object item, Object listener, int limit) {
+      if (limit < 1) throw new IllegalArgumentException("Invalid limit");
+      this.item = item;
+      this.listener = listener;
+      this.limit = limit;
+   }
+   /**
+    * This method enqueues the invocation, and returns immediately, unless
+    * the limit of pending invocations has been reached.
+    * @param  method The name of the method to be invoked on the item.
+    * @param  args The argument, or arguments, to be provided to the method.
+    * @return null No return is provided, it is required to fulfill the
+    * Invoke interface.
+    * @throws InterruptedException If the calling thread was interrupted,
+    * while waiting for room in the queue.
+    */
+   public synchronized Object invoke(String method, Object args)
+      throws InterruptedException {
+      while(invocations.size() >= limit * 2) wait();
+      invocations.add(method);
+      invocations.add(args);
+      if (active < (unbatched ? threads : 1)) {
+         active++;
+         Thread thread = new Thread(new Runnable() {
+            public void run() {
+               while(true) {
+                  String methods[];
+                  Object args[];
+                  synchronized(OneWay.this) {
+                     if (invocations.isEmpty()) { // idle, stop dispatching
+                        active--;
+                        return;
+                     }
+                     int n = unbatched ? 1 : invocations.size() / 2;
+                     methods = new String[n];
+                     args = new Object[n];
+                     for (int i = 0; i < n; i++) {
+                        methods[i] = (String)invocations.removeFirst();
+                        args[i] = invocations.removeFirst();
+                     }
+                     OneWay.this.notifyAll();
+                  }
+                  if (methods.length > 1) try {
+                     Object errors[] = (Object[])Remote.invoke(item, "batch",
+                        new Object[] { methods, args });
+                     if (errors != null) for (int i = 0; i < errors.length; i++)
+                        if (errors[i] != null)
+                           failed(methods[i], (Exception)errors[i]);
+                     continue;
+                  } catch(NoSuchMethodException x) { // send individually
+                     synchronized(OneWay.this) { unbatched = true; }
+                  } catch(Exception x) {
+                     for (int i = 0; i < methods.length; i++)
+                        failed(methods[i], x);
+                     continue;
+                  }
+                  for (int i = 0; i < methods.length; i++)
+                     try { Remote.invoke(item, methods[i], args[i]); }
+                     catch(Exception x) { failed(methods[i], x); }
+               }
+            }
+         });
+         thread.setDaemon(true);
+         thread.start();
+      }
+      return null;
+   }
+   private void failed(String method, Exception x) {
+      if (listener != null)
+         try { Remote.invoke(listener, method, x); }
+         catch(Exception y) { y.printStackTrace(); }
+   }
+   /**
+    * This method reports the number of invocations not yet performed.
+    * @return The number of pending invocations
+    */
+   public synchronized int pending() { return invocations.size() / 2; }
+}
@@ -0,0 +1,212 @@
+package gnu.cajo.utils.extra;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/*
+ * Flow Controlled Publisher
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file Publisher.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used by an item to push a stream of elements, e.g. events,
+ * to its clients; no faster than each can accept them. Unlike a {@link
+ * Queue Queue}, each subscriber signals its <i>demand,</i> by requesting a
+ * number of elements; and elements are delivered in chunks, as many as are
+ * waiting, and requested, up to the chunk size, in each remote call.<p>
+ * Each subscriber has a buffer of the elements published, but not yet
+ * delivered. When a buffer is full, the publishing waits for room; if there
+ * is none within the timeout, the subscriber is dropped, with an error, so
+ * that a slow client can neither overwhelm, nor stall, the others.<p>
+ * An item would typically return a publisher from one of its methods; as it
+ * is not serialisable, the client receives a {@link TransparentItemProxy
+ * TransparentItemProxy} implementing {@link Flow.Source Flow.Source}, on
+ * which it can subscribe, for example with a {@link Receiver Receiver}.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class Publisher implements Flow.Source {
+   private final class Sub implements Flow.Subscription {
+      // as it is remoted, its only public methods are those of the interface
+      private final Flow.Subscriber subscriber;
+      private final LinkedList buffer = new LinkedList();
+      private long demand;
+      private boolean cancelled;
+      private Exception error;
+      private Sub(Flow.Subscriber subscriber) {
+         this.subscriber = subscriber;
+      }
+      private void start() { // delivers on its own thread
+         Thread thread = new Thread(new Runnable() {
+            public void run() { deliver(); }
+         });
+         thread.setDaemon(true);
+         thread.start();
+      }
+      public synchronized void request(long n) {
+         if (n <= 0) return;
+         demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+         notifyAll();
+      }
+      public void cancel() {
+         synchronized(this) {
+            cancelled = true;
+            notifyAll();
+         }
+         synchronized(subs) { subs.remove(this); }
+      }
+      private synchronized void fail(Exception x) { // after the buffer
+         if (error == null) error = x;
+         notifyAll();
+      }
+      private synchronized void add(Object element) {
+         long deadline = System.currentTimeMillis() + timeout;
+         try {
+            for (long wait = timeout; !cancelled && error == null &&
+               buffer.size() >= limit && wait > 0;
+               wait = deadline - System.currentTimeMillis()) wait(wait);
+         } catch(InterruptedException x) {}
+         if (cancelled || error != null) return;
+         if (buffer.size() < limit) {
+            buffer.add(element);
+            notifyAll();
+         } else { // drop the subscriber, without waiting for the buffer
+            buffer.clear();
+            fail(new IllegalStateException("Subscriber too slow"));
+         }
+      }
+      private void deliver() {
+         try {
+            while(true) {
+               Object elements[];
+               synchronized(this) {
+                  long deadline = 0;
+                  while(!cancelled && (buffer.isEmpty() ?
+                     error == null && !completed : demand == 0)) {
+                     if (completed || error != null) { // nothing will wake it
+                        long now = System.currentTimeMillis();
+                        if (deadline == 0) deadline = now + timeout;
+                        else if (now >= deadline) { // the subscriber is gone
+                           buffer.clear();
+                           fail(new IllegalStateException(
+                              "Subscriber too slow"));
+                           break;
+                        }
+                        wait(Math.max(deadline - now, 1));
+                     } else wait();
+                  }
+                  if (cancelled) return;
+                  if (!buffer.isEmpty()) {
+                     int n = (int)Math.min(Math.min(chunk, demand),
+                        buffer.size());
+                     elements = new Object[n];
+                     for (int i = 0; i < n; i++)
+                        elements[i] = buffer.removeFirst();
+                     demand -= n;
+                     notifyAll(); // room for the publisher
+                  } else elements = null;
+               }
+               if (elements != null) subscriber.onNext(elements);
+               else {
+                  cancel();
+                  if (error != null) subscriber.onError(error);
+                  else subscriber.onComplete();
+                  return;
+               }
+            }
+         } catch(Exception x) { cancel(); } // unreachable, or failing
+      }
+   }
+   private final ArrayList subs = new ArrayList();
+   private volatile boolean completed;
+   /**
+    * The maximum number of elements delivered in a single call. By default
+    * it is 64.
+    */
+   public int chunk = 64;
+   /**
+    * The maximum number of elements buffered for each subscriber. By
+    * default it is 1024.
+    */
+   public int limit = 1024;
+   /**
+    * The time in milliseconds publishing will wait for room in the buffer
+    * of a subscriber, before dropping it. If zero, a subscriber is dropped
+    * as soon as its buffer is full, never delaying publishing. Once the
+    * stream has ended, it is also the time a subscriber may go without
+    * requesting the elements remaining, before it is dropped. By default
+    * it is 10 seconds.
+    */
+   public long timeout = 10000L;
+   /**
+    * This method subscribes to the elements published after it is called.
+    * It is normally called remotely, by a client.
+    * @param subscriber The object, local or remote, to receive the elements
+    * @return The subscription, on which to request elements
+    */
+   public Flow.Subscription subscribe(Flow.Subscriber subscriber) {
+      Sub sub = new Sub(subscriber);
+      synchronized(subs) {
+         if (completed) sub.fail(new IllegalStateException("Completed"));
+         else subs.add(sub);
+      }
+      sub.start();
+      return sub;
+   }
+   private Sub[] subs() {
+      synchronized(subs) { return (Sub[])subs.toArray(new Sub[subs.size()]); }
+   }
+   /**
+    * This method publishes an element to all subscribers. It waits while the
+    * buffer of a subscriber is full, up to the timeout.
+    * @param element The element, it must be serialisable
+    */
+   public void publish(Object element) {
+      Sub subs[] = subs();
+      for (int i = 0; i < subs.length; i++) subs[i].add(element);
+   }
+   /**
+    * This method ends the stream; subscribers will be notified once they
+    * have received all of the elements published.
+    */
+   public void complete() {
+      synchronized(subs) { completed = true; }
+      Sub subs[] = subs();
+      for (int i = 0; i < subs.length; i++)
+         synchronized(subs[i]) { subs[i].notifyAll(); }
+   }
+   /**
+    * This method fails the stream; subscribers will be notified once they
+    * have received all of the elements published.
+    * @param x The reason for the failure
+    */
+   public void error(Exception x) {
+      synchronized(subs) { completed = true; }
+      Sub subs[] = subs();
+      for (int i = 0; i < subs.length; i++) subs[i].fail(x);
+   }
+   /**
+    * This method reports the number of current subscribers.
+    * @return The number of subscribers
+    */
+   public int getSubscribers() { synchronized(subs) { return subs.size(); } }
+}
@@ -0,0 +1,95 @@
+package gnu.cajo.utils.extra;
+
+import gnu.cajo.invoke.*;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/*
+ * Read Replica Invocation Router
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file ReadRouter.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used by clients of a {@link ReplicatedItem ReplicatedItem},
+ * to send invocations of its write methods to the primary copy, and all
+ * others to its replicas, in turn. If a replica cannot be reached, the next
+ * one is tried, as it is if the replica refuses the read, for being staler
+ * than the bounds of the ReplicatedItem; and finally the primary.
+ * Typically a router would be used as the item of a {@link
+ * TransparentItemProxy TransparentItemProxy}.<p>
+ * <i>Note:</i> a read sent to a replica may not yet reflect the latest
+ * writes; by at most the lag limit of the ReplicatedItem.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class ReadRouter implements Invoke {
+   private static final long serialVersionUID = 1L;
+   private final HashSet writes;
+   private int next;
+   /**
+    * The reference to the primary copy, typically remote.
+    */
+   public final Object primary;
+   /**
+    * The references to the replicas, typically remote.
+    */
+   public final Object replicas[];
+   /**
+    * The constructor creates the router.
+    * @param primary The reference to the ReplicatedItem
+    * @param replicas The references to its replicas, as returned by its
+    * replicate method
+    * @param writes The names of the write methods, as given to the
+    * ReplicatedItem
+    */
+   public ReadRouter(Object primary, Object replicas[], String writes[]) {
+      this.primary = primary;
+      this.replicas = replicas;
+      this.writes = new HashSet(Arrays.asList(writes));
+   }
+   /**
+    * This method sends writes to the primary, and reads to a replica.
+    * @param method The item's public method being called.
+    * @param args The arguments to pass to the method.
+    * @return The sychronous data, if any, resulting from the invocation.
+    * @throws java.rmi.RemoteException For a network related failure.
+    * @throws NoSuchMethodException If the method/agruments signature cannot
+    * be matched to the item's public method interface.
+    * @throws Exception If the item's method rejects the invocation.
+    */
+   public Object invoke(String method, Object args) throws Exception {
+      if (!writes.contains(method)) {
+         int first;
+         synchronized(this) {
+            first = next;
+            next = (next + 1) % Math.max(replicas.length, 1);
+         }
+         for (int i = 0; i < replicas.length; i++)
+            try {
+               return Remote.invoke(
+                  replicas[(first + i) % replicas.length], method, args);
+            } catch(IOException x) {} // try the next one
+      }
+      return Remote.invoke(primary, method, args);
+   }
+}
@@ -0,0 +1,151 @@
+package gnu.cajo.utils.extra;
+
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+
+/*
+ * Flow Controlled Receiver
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file Receiver.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used by a client to consume the elements of a {@link
+ * Flow.Source Flow.Source}, typically a remote {@link Publisher Publisher},
+ * one at a time, at its own pace. It keeps up to a window of elements
+ * requested ahead of their consumption, so that they are usually already
+ * waiting when needed; as half of the window is consumed, that many more
+ * are requested. The source can therefore never send more elements than
+ * the window holds.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class Receiver implements Flow.Subscriber {
+   private final LinkedList elements = new LinkedList();
+   private Flow.Subscription subscription;
+   private Exception error;
+   private boolean done;
+   private int consumed;
+   /**
+    * The number of elements requested ahead of their consumption.
+    */
+   public final int window;
+   /**
+    * The constructor creates the receiver, it must then subscribe to a
+    * source.
+    * @param window The number of elements to request ahead, typically a
+    * few times the chunk size of the publisher
+    */
+   public Receiver(int window) {
+      if (window < 1) throw new IllegalArgumentException("Invalid window");
+      this.window = window;
+   }
+   /**
+    * This method subscribes the receiver to a source, and requests the
+    * first window of elements. It can be called only once.
+    * @param source The source, local or remote, of the elements
+    */
+   public void subscribe(Flow.Source source) {
+      Flow.Subscription subscription = source.subscribe(this);
+      synchronized(this) {
+         if (this.subscription != null)
+            throw new IllegalStateException("Already subscribed");
+         this.subscription = subscription;
+      }
+      subscription.request(window);
+   }
+   /**
+    * This method is called by the source, to deliver elements. It is not
+    * intended to be called directly.
+    * @param elements The elements
+    */
+   public synchronized void onNext(Object elements[]) {
+      for (int i = 0; i < elements.length; i++) this.elements.add(elements[i]);
+      notifyAll();
+   }
+   /**
+    * This method is called by the source, if the stream fails. It is not
+    * intended to be called directly.
+    * @param x The reason
+    */
+   public synchronized void onError(Exception x) {
+      error = x;
+      done = true;
+      notifyAll();
+   }
+   /**
+    * This method is called by the source, when the stream ends. It is not
+    * intended to be called directly.
+    */
+   public synchronized void onComplete() {
+      done = true;
+      notifyAll();
+   }
+   /**
+    * This method waits until an element is available, or the stream has
+    * ended.
+    * @return true if there is another element
+    * @throws InterruptedException If the thread was interrupted while
+    * waiting
+    * @throws Exception The reason the stream failed, once all of the
+    * elements received have been consumed
+    */
+   public synchronized boolean hasNext() throws Exception {
+      while(elements.isEmpty() && !done) wait();
+      if (!elements.isEmpty()) return true;
+      if (error != null) throw error;
+      return false;
+   }
+   /**
+    * This method provides the next element, waiting for it if necessary.
+    * @return The element
+    * @throws NoSuchElementException If the stream has ended
+    * @throws Exception The reason the stream failed, once all of the
+    * elements received have been consumed
+    */
+   public Object next() throws Exception {
+      Object element;
+      int request = 0;
+      synchronized(this) {
+         if (!hasNext()) throw new NoSuchElementException();
+         element = elements.removeFirst();
+         if (++consumed >= (window + 1) / 2 && !done) {
+            request = consumed;
+            consumed = 0;
+         }
+      }
+      if (request > 0) subscription.request(request);
+      return element;
+   }
+   /**
+    * This method ends the subscription; elements already received can
+    * still be consumed.
+    */
+   public void cancel() {
+      Flow.Subscription subscription;
+      synchronized(this) {
+         subscription = this.subscription;
+         done = true;
+         notifyAll();
+      }
+      if (subscription != null) subscription.cancel();
+   }
+}
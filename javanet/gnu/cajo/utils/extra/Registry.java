@@ -3,7 +3,10 @@ package gnu.cajo.utils.extra;
 import gnu.cajo.invoke.Remote;
 import gnu.cajo.invoke.RemoteInvoke;
 import gnu.cajo.utils.Multicast;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Vector;
 import java.rmi.server.ServerNotActiveException;
 
 /*
@@ -36,7 +39,11 @@ import java.rmi.server.ServerNotActiveException;
  * only one object is allowed per virtual machine IP address, any
  * subsequent entries overwrite the previous. It also runs a lightwieght task,
  * which periodically runs through the registry, purging object references
- * that have become invalid. To encourage spontaneous internetworking, the
+ * that have become invalid. Each reference is held on a lease, renewed by
+ * its announcements, and posts. When a lease expires, the reference is
+ * checked; those not responding within the timeout are removed
+ * immediately, the others have their lease renewed. All expired references
+ * are checked concurrently. To encourage spontaneous internetworking, the
  * registry will announce itself hourly, on the cajo hailing frequency,
  * and listen on it, for other reference announcements; which it will
  * automatically register.
@@ -46,20 +53,119 @@ import java.rmi.server.ServerNotActiveException;
  */
 public final class Registry {
    private final Hashtable entries = new Hashtable();
+   private final HashMap leases = new HashMap();
+   private final HashMap versions = new HashMap();
+   private long version;
+   private Thread sweeper;
+   /**
+    * The time in milliseconds for which a reference is registered, before
+    * it must be renewed, or checked. By default it is five minutes.
+    */
+   public long ttl = 300000L;
+   /**
+    * The time in milliseconds a reference whose lease has expired is given
+    * to respond, before it is removed. By default it is five seconds.
+    */
+   public long timeout = 5000L;
+   /**
+    * This method registers a reference, or renews its lease.
+    */
+   private synchronized void put(String key, Object ref) {
+      Object old = entries.put(key, ref);
+      leases.put(key, new Long(System.currentTimeMillis() + ttl));
+      if (!ref.equals(old)) versions.put(key, new Long(++version));
+      if (sweeper == null) {
+         sweeper = new Thread() {
+            public void run() {
+               try { sweep(); }
+               catch(InterruptedException x) {}
+            }
+         };
+         sweeper.setDaemon(true);
+         sweeper.start();
+      }
+   }
+   /**
+    * This method checks the references whose lease has expired, removing
+    * those that fail to respond in time.
+    */
+   private void sweep() throws InterruptedException {
+      while(true) {
+         final Hashtable expired = new Hashtable();
+         final HashMap alive = new HashMap();
+         final int done[] = { 0 };
+         long time;
+         synchronized(this) {
+            time = System.currentTimeMillis();
+            long next = time + ttl;
+            for (Iterator i = leases.keySet().iterator(); i.hasNext();) {
+               Object key = i.next();
+               long expiry = ((Long)leases.get(key)).longValue();
+               if (expiry <= time) expired.put(key, entries.get(key));
+               else if (expiry < next) next = expiry;
+            }
+            if (expired.isEmpty()) {
+               wait(next - time);
+               continue;
+            }
+         }
+         for (java.util.Enumeration e = expired.keys(); e.hasMoreElements();) {
+            final Object key = e.nextElement();
+            Thread probe = new Thread() { // a hung host must not stall us
+               public void run() {
+                  try {
+                     Remote.invoke(expired.get(key), "toString", null);
+                     synchronized(alive) { alive.put(key, key); }
+                  } catch(Exception x) {}
+                  synchronized(alive) {
+                     done[0]++;
+                     alive.notify();
+                  }
+               }
+            };
+            probe.setDaemon(true);
+            probe.start();
+         }
+         long deadline = time + timeout;
+         synchronized(alive) {
+            for (long wait = timeout; done[0] < expired.size() &&
+               wait > 0; wait = deadline - System.currentTimeMillis())
+               alive.wait(wait);
+         }
+         synchronized(this) {
+            long now = System.currentTimeMillis();
+            for (java.util.Enumeration e = expired.keys(); e.hasMoreElements();) {
+               Object key = e.nextElement();
+               Long expiry = (Long)leases.get(key);
+               if (expiry == null || expiry.longValue() > time ||
+                  !expired.get(key).equals(entries.get(key))) continue;
+               boolean ok;
+               synchronized(alive) { ok = alive.containsKey(key); }
+               if (ok) leases.put(key, new Long(now + ttl));
+               else {
+                  entries.remove(key);
+                  leases.remove(key);
+                  versions.put(key, new Long(++version));
+               }
+            }
+         }
+      }
+   }
    /**
     * This method is called solely by this registry's Multicast member
-    * object, to register objects of remote server announcements.
+    * object, to register objects of remote server announcements, or renew
+    * their lease.
     */
-   public void multicast(Multicast multicast) {
-      entries.put(multicast.iaddr.getHostAddress(), multicast.item);
+   public void multicast(Multicast multicast) throws Exception {
+      put(multicast.iaddr.getHostAddress(), multicast.getItem());
    }
    /**
     * This method statically called by a remote machine to register an object
-    * reference.
+    * reference, or renew its lease.
     * @param ref The remote reference to the object to be registered
     */
    public void post(RemoteInvoke ref) throws ServerNotActiveException {
-      entries.put(java.rmi.server.RemoteServer.getClientHost(), ref);
+      put(java.rmi.server.RemoteServer.getClientHost(), ref);
    } // technically it couldn't ever throw this exception at a remote client
    /**
     * This method is called by remote VMs, to request a copy of the remote
@@ -68,6 +174,29 @@ public final class Registry {
     * server addresses
     */
    public Hashtable get() { return entries; }
+   /**
+    * This method is called by remote VMs, to request only the changes to
+    * the registry, since a copy previously requested.
+    * @param version The version of the registry previously returned, or 0
+    * for all of its references
+    * @return An array of three elements: the current version of the
+    * registry, as a Long; a Hashtable of the references registered, or
+    * replaced, since the version provided, keyed by their server
+    * addresses; and a Vector of the server addresses whose references have
+    * been removed since
+    */
+   public synchronized Object[] get(long version) {
+      Hashtable changed = new Hashtable();
+      Vector removed = new Vector();
+      for (Iterator i = versions.keySet().iterator(); i.hasNext();) {
+         Object key = i.next();
+         if (((Long)versions.get(key)).longValue() <= version) continue;
+         Object ref = entries.get(key);
+         if (ref != null) changed.put(key, ref);
+         else removed.add(key);
+      }
+      return new Object[] { new Long(this.version), changed, removed };
+   }
    /**
     * Always a good idea; this method describes how to use the registry
     * object, and what its features are. Not unlike these comments
@@ -84,8 +213,11 @@ public final class Registry {
       "All currently registered references can be requested via the\n" +
       "'get' method. It takes no arguments, and returns a\n" +
       "java.util.Hashtable containing the registered remote item\n" +
-      "references, keyed by their server addresses. Additionally, it\n" +
-      "automatically purges inactive references periodically.\n\n" +
+      "references, keyed by their server addresses. Given the version\n" +
+      "number returned by a previous call, 'get' returns only the\n" +
+      "changes since. References are leased, announcements and posts\n" +
+      "renew them; references not renewed are checked, and purged if\n" +
+      "inactive.\n\n" +
       "Enjoy!";
    }
    /**
@@ -107,19 +239,9 @@ public final class Registry {
          Remote ref = new Remote(registry);
          Multicast multicast = new Multicast();
          gnu.cajo.utils.ItemServer.bind(ref, "registry");
-         multicast.listen(registry);
-         Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
-         do { // periodically purge dead references:
-            multicast.announce(ref, 200);
-            Thread.sleep(3600000L); // wait an hour
-            java.util.Enumeration keys = registry.entries.keys();
-            while (keys.hasMoreElements()) {
-               Object key = keys.nextElement();
-               Object o = registry.entries.get(key);
-               try { Remote.invoke(o, "toString", null); }
-               catch(Exception x) { registry.entries.remove(key); }
-            }
-         } while(true);
+         multicast.listen(registry, 2);
+         new gnu.cajo.utils.Announcer(multicast, "registry", ref, 200,
+            3600000L); // about hourly
       } catch(Exception x) { x.printStackTrace(); }
    }
 }
@@ -0,0 +1,308 @@
+package gnu.cajo.utils.extra;
+
+import gnu.cajo.Service;
+import gnu.cajo.invoke.*;
+import java.rmi.MarshalledObject;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+
+/*
+ * Primary Copy Replicated Item
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file ReplicatedItem.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used to spread the reading of an item over copies of it,
+ * running in other JVMs. The wrapped item is the <i>primary</i> copy; all
+ * invocations of its chosen write methods must be made here, where they are
+ * performed one at a time, numbered, and recorded. The recorded writes are
+ * streamed to each <i>replica</i>, which performs them, in the same order,
+ * on its own copy. Replicas accept only read invocations; a {@link
+ * ReadRouter ReadRouter} is typically used by clients, to send reads to the
+ * replicas, and writes to the primary.<p>
+ * A replica is created by the {@link #replicate replicate} method, which
+ * sends a snapshot of the item to a service's {@link
+ * gnu.cajo.Service#sendProxy sendProxy} method, in the same way as a {@link
+ * Migrant Migrant}. The number of writes a replica has yet to perform, its
+ * <i>lag</i>, is bounded: when a replica falls more than the limit behind,
+ * writes wait for it to catch up; if it does not do so within the timeout,
+ * it is dropped. A replica refuses reads, with a RemoteException, once it
+ * has not been sent writes, or a heartbeat, within the timeout; or it is
+ * known to be more than the limit behind. A read is therefore never staler
+ * than the bound, and a ReadRouter will try another copy.<p>
+ * <i>Note:</i> the write methods must be deterministic, since they are
+ * performed separately on each copy; and the item must be serialisable.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class ReplicatedItem implements Invoke {
+   private static final long serialVersionUID = 1L;
+   private static final int BATCH = 256;
+   private static final class Batch implements java.io.Serializable {
+      private static final long serialVersionUID = 1L;
+      private final long first; // the sequence number of the first write
+      private final long last;  // that of the primary, when sent
+      private final String methods[];
+      private final Object args[];
+      private Batch(long first, long last, String methods[], Object args[]) {
+         this.first = first;
+         this.last = last;
+         this.methods = methods;
+         this.args = args;
+      }
+   }
+   private static final class Replica implements Invoke, Service.Proxy {
+      private static final long serialVersionUID = 1L;
+      private final HashSet writes;
+      private final int maxLag;
+      private final long timeout;
+      private MarshalledObject snapshot;
+      private volatile long applied, latest;
+      private transient volatile long fed; // when last sent a batch
+      private transient Object item;
+      private Replica(HashSet writes, MarshalledObject snapshot, long seq,
+         int maxLag, long timeout) {
+         this.writes = writes;
+         this.snapshot = snapshot;
+         this.maxLag = maxLag;
+         this.timeout = timeout;
+         applied = latest = seq;
+      }
+      public void init(Object service) {
+         try { item = snapshot.get(); }
+         catch(Exception x) {
+            throw new IllegalStateException("Item could not be restored: " + x);
+         }
+         snapshot = null;
+         fed = System.currentTimeMillis();
+      }
+      private synchronized Object apply(Batch batch) throws Exception {
+         if (batch.first > applied + 1)
+            throw new IllegalStateException("Writes missing from " + applied);
+         fed = System.currentTimeMillis();
+         if (batch.last > latest) latest = batch.last;
+         for (int i = (int)(applied + 1 - batch.first);
+            i < batch.methods.length; i++) {
+            try { Remote.invoke(item, batch.methods[i], batch.args[i]); }
+            catch(Exception x) {} // the primary's write failed likewise
+            applied++;
+         }
+         return new Long(applied);
+      }
+      public Object invoke(String method, Object args) throws Exception {
+         if (args instanceof Batch) return apply((Batch)args);
+         if (writes.contains(method))
+            throw new IllegalArgumentException("Write to replica: " + method);
+         if (System.currentTimeMillis() - fed > timeout)
+            throw new RemoteException("Replica not fed by its primary");
+         if (latest - applied > maxLag)
+            throw new RemoteException("Replica lagging its primary");
+         return Remote.invoke(item, method, args);
+      }
+   }
+   private final class Feed extends Thread { // streams writes to a replica
+      private Object ref;
+      private long acked;
+      private Feed(long acked) { this.acked = acked; }
+      public void run() {
+         try {
+            while(true) {
+               Batch batch;
+               synchronized(ReplicatedItem.this) {
+                  long beat = System.currentTimeMillis() + timeout / 2;
+                  while(feeds.contains(this) && acked == seq) {
+                     long wait = beat - System.currentTimeMillis();
+                     if (wait > 0) ReplicatedItem.this.wait(wait);
+                     else break; // send an empty batch, as a heartbeat
+                  }
+                  if (!feeds.contains(this)) return;
+                  int from = (int)(acked - base), size =
+                     Math.min(BATCH, (int)(seq - acked));
+                  String m[] = new String[size];
+                  Object a[] = new Object[size];
+                  for (int i = 0; i < size; i++) {
+                     Object op[] = (Object[])log.get(from + i);
+                     m[i] = (String)op[0];
+                     a[i] = op[1];
+                  }
+                  batch = new Batch(acked + 1, seq, m, a);
+               }
+               long done = ((Long)Remote.invoke(ref, "apply", batch)).
+                  longValue();
+               synchronized(ReplicatedItem.this) {
+                  acked = done;
+                  trim();
+                  ReplicatedItem.this.notifyAll();
+               }
+            }
+         } catch(Exception x) { drop(this); }
+      }
+   }
+   private final HashSet writes;
+   private final ArrayList log = new ArrayList(); // {method, args, time}
+   private final ArrayList feeds = new ArrayList();
+   private long seq, base; // the last write, and that before the log
+   /**
+    * This is the primary copy of the item. It is declared as public to
+    * allow the reference of the ReplicatedItem, and its wrapped object,
+    * from a single instance of ReplicatedItem.
+    */
+   public final Object item;
+   /**
+    * The maximum number of writes a replica may have yet to perform, before
+    * further writes wait for it. By default it is 1000.
+    */
+   public int maxLag = 1000;
+   /**
+    * The time in milliseconds a write will wait for a lagging replica,
+    * before the replica is dropped; and after which a replica not sent
+    * writes, nor a heartbeat, refuses reads. By default it is 10 seconds.
+    */
+   public long timeout = 10000L;
+   /**
+    * The constructor wraps the primary copy of the item.
+    * @param item The item to replicate, it must be serialisable
+    * @param writes The names of the methods which change the state of the
+    * item, all others are considered reads
+    */
+   public ReplicatedItem(Object item, String writes[]) {
+      this.item = item;
+      this.writes = new HashSet(Arrays.asList(writes));
+   }
+   private void trim() { // discard writes performed by all replicas
+      long min = seq;
+      for (int i = 0; i < feeds.size(); i++)
+         min = Math.min(min, ((Feed)feeds.get(i)).acked);
+      log.subList(0, (int)(min - base)).clear();
+      base = min;
+   }
+   private synchronized void drop(Feed feed) {
+      if (feeds.remove(feed)) {
+         trim();
+         notifyAll();
+      }
+   }
+   /**
+    * This method passes reads directly to the item. Writes are performed
+    * one at a time, and recorded for the replicas; if a replica lags by more
+    * than the limit, the write waits until it has caught up, or has been
+    * dropped. <i>Note:</i> this method can be called reentrantly.
+    * @param method The internal object's public method being called.
+    * @param args The arguments to pass to the internal object's method.
+    * @return The sychronous data, if any, resulting from the invocation.
+    * @throws java.rmi.RemoteException For a network related failure.
+    * @throws NoSuchMethodException If the method/agruments signature cannot
+    * be matched to the internal object's public method interface.
+    * @throws Exception If the internal object's method rejects the
+    * invocation.
+    */
+   public Object invoke(String method, Object args) throws Exception {
+      if (!writes.contains(method)) return Remote.invoke(item, method, args);
+      synchronized(this) {
+         try { return Remote.invoke(item, method, args); }
+         finally {
+            seq++;
+            if (feeds.isEmpty()) base = seq; // no one to record it for
+            else {
+               log.add(new Object[] {
+                  method, args, new Long(System.currentTimeMillis()) });
+               notifyAll();
+               long deadline = System.currentTimeMillis() + timeout;
+               for (int i = 0; i < feeds.size(); i++) {
+                  Feed feed = (Feed)feeds.get(i);
+                  while(feeds.contains(feed) && seq - feed.acked > maxLag) {
+                     long wait = deadline - System.currentTimeMillis();
+                     if (wait > 0) wait(wait);
+                     else drop(feed);
+                  }
+                  if (!feeds.contains(feed)) i--;
+               }
+            }
+         }
+      }
+   }
+   /**
+    * This method creates a replica of the item, in the JVM of a service.
+    * Writes made while the replica is being created will be streamed to it
+    * once it has been.
+    * @param service The reference to the service, typically remote, which
+    * must accept proxies
+    * @return The remote reference to the replica, to which reads may be sent
+    * @throws ClassNotFoundException If the service does not accept proxies
+    * @throws Exception If the service could not be reached, or rejected the
+    * replica, for application specific reasons
+    */
+   public Object replicate(Object service) throws Exception {
+      Replica replica;
+      Feed feed;
+      synchronized(this) {
+         replica = new Replica(writes, new MarshalledObject(item), seq,
+            maxLag, timeout);
+         feed = new Feed(seq);
+         feeds.add(feed);
+      }
+      try { feed.ref = Remote.invoke(service, "sendProxy", replica); }
+      catch(Exception x) {
+         drop(feed);
+         throw x;
+      }
+      feed.setDaemon(true);
+      feed.start();
+      return feed.ref;
+   }
+   /**
+    * This method stops streaming writes to all of the replicas.
+    */
+   public synchronized void dropReplicas() {
+      feeds.clear();
+      trim();
+      notifyAll();
+   }
+   /**
+    * This method reports the number of replicas being streamed to.
+    * @return The number of replicas
+    */
+   public synchronized int getReplicas() { return feeds.size(); }
+   /**
+    * This method reports the number of writes made to the primary.
+    * @return The sequence number of the latest write
+    */
+   public synchronized long getSequence() { return seq; }
+   /**
+    * This method reports the greatest number of writes any replica has yet
+    * to perform.
+    * @return The lag, in writes, of the slowest replica
+    */
+   public synchronized long getLag() { return seq - base; }
+   /**
+    * This method reports how long ago the oldest write yet to be performed
+    * by all of the replicas was made.
+    * @return The lag, in milliseconds, of the slowest replica, 0 if all
+    * replicas are up to date
+    */
+   public synchronized long getDelay() {
+      return log.isEmpty() ? 0 : System.currentTimeMillis() -
+         ((Long)((Object[])log.get(0))[2]).longValue();
+   }
+}
@@ -0,0 +1,290 @@
+package gnu.cajo.utils.extra;
+
+import gnu.cajo.invoke.*;
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+
+/*
+ * Scatter Gather Invoker
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file ScatterGather.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used to send each invocation to many objects at once,
+ * typically the shards of a partitioned data set, e.g. the results of a
+ * {@link gnu.cajo.Cajo#lookup Cajo lookup}. The invocations are made in
+ * parallel, and their results are combined, as they arrive, by a {@link
+ * Reducer Reducer}. Several common reducers are provided.<p>
+ * The invocation returns when all of the objects have responded, when the
+ * reducer reports its result complete, or when the timeout has elapsed;
+ * results arriving later are ignored. If fewer than the required number of
+ * objects have responded successfully, the invocation fails. If a listener
+ * is provided, it is called with the combined result, each time another
+ * result arrives, on a method of the signature:<p>
+ * <blockquote><tt>
+ * public void partial(Object result, int count);</tt></blockquote><p>
+ * allowing a client to use results before the slowest of the objects has
+ * responded. Null results, e.g. of void methods, are counted, but not
+ * combined. Typically a ScatterGather would be used as the item of a
+ * {@link TransparentItemProxy TransparentItemProxy}.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class ScatterGather implements Invoke {
+   private static final long serialVersionUID = 1L;
+   /**
+    * This interface defines the combining of results.
+    */
+   public interface Reducer {
+      /**
+       * This method combines another result with those received so far.
+       * It is called by one thread at a time.
+       * @param total The combined result so far, null for the first result
+       * @param result The result to be combined, never null
+       * @return The new combined result
+       */
+      Object reduce(Object total, Object result);
+      /**
+       * This method reports whether the combined result is final, and the
+       * invocation may return without waiting for further results.
+       * @param total The combined result so far
+       * @return true if no further results are needed
+       */
+      boolean complete(Object total);
+   }
+   /**
+    * This reducer concatenates results which are arrays, or collections.
+    * Arrays are combined into an array of the same type, collections into
+    * a list.
+    */
+   public static final Reducer MERGE = new Reducer() {
+      public Object reduce(Object total, Object result) {
+         return merge(total, result);
+      }
+      public boolean complete(Object total) { return false; }
+   };
+   /**
+    * This reducer adds results which are numbers. The sum is of the type of
+    * the results, or double if the types are mixed.
+    */
+   public static final Reducer SUM = new Reducer() {
+      public Object reduce(Object total, Object result) {
+         if (total == null) return result;
+         Number a = (Number)total, b = (Number)result;
+         if (a.getClass() != b.getClass() || a instanceof Double)
+            return new Double(a.doubleValue() + b.doubleValue());
+         if (a instanceof Float)
+            return new Float(a.floatValue() + b.floatValue());
+         if (a instanceof Long) return new Long(a.longValue() + b.longValue());
+         if (a instanceof Short)
+            return new Short((short)(a.shortValue() + b.shortValue()));
+         if (a instanceof Byte)
+            return new Byte((byte)(a.byteValue() + b.byteValue()));
+         return new Integer(a.intValue() + b.intValue());
+      }
+      public boolean complete(Object total) { return false; }
+   };
+   /**
+    * This reducer returns the first successful result. The invocation
+    * returns as soon as it arrives.
+    */
+   public static final Reducer FIRST = new Reducer() {
+      public Object reduce(Object total, Object result) {
+         return total != null ? total : result;
+      }
+      public boolean complete(Object total) { return total != null; }
+   };
+   /**
+    * This method creates a reducer returning the greatest elements of the
+    * results, which are arrays, or collections. Arrays are combined into an
+    * array of the same type, collections into a list; in descending order.
+    * @param k The number of elements to return
+    * @param comparator The ordering of the elements, if null, their natural
+    * ordering is used
+    * @return The reducer
+    */
+   public static Reducer top(final int k, final Comparator comparator) {
+      return new Reducer() {
+         public Object reduce(Object total, Object result) {
+            Object merged = merge(total, result);
+            boolean array = merged.getClass().isArray();
+            Object list[] = array ? (Object[])merged :
+               ((Collection)merged).toArray();
+            Arrays.sort(list, Collections.reverseOrder(comparator));
+            int size = Math.min(k, list.length);
+            if (!array)
+               return new ArrayList(Arrays.asList(list).subList(0, size));
+            Object top = Array.newInstance(
+               merged.getClass().getComponentType(), size);
+            System.arraycopy(list, 0, top, 0, size);
+            return top;
+         }
+         public boolean complete(Object total) { return false; }
+      };
+   }
+   /**
+    * This method concatenates two arrays, or collections.
+    */
+   private static Object merge(Object total, Object result) {
+      if (result.getClass().isArray()) {
+         if (total == null) return result;
+         int a = Array.getLength(total), b = Array.getLength(result);
+         Object merged = Array.newInstance(
+            total.getClass().getComponentType(), a + b);
+         System.arraycopy(total, 0, merged, 0, a);
+         System.arraycopy(result, 0, merged, a, b);
+         return merged;
+      }
+      ArrayList merged = total != null ? (ArrayList)total : new ArrayList();
+      merged.addAll((Collection)result);
+      return merged;
+   }
+   /**
+    * The objects to which each invocation is sent.
+    */
+   public final Object items[];
+   /**
+    * The reducer combining the results.
+    */
+   public final Reducer reducer;
+   /**
+    * The minimum number of objects which must respond successfully, for an
+    * invocation to succeed. By default, all of them.
+    */
+   public int required;
+   /**
+    * The time in milliseconds each object is given to respond, after which
+    * it is left out. By default it is 10 seconds.
+    */
+   public long timeout = 10000L;
+   /**
+    * The object, local or remote, to be called with each partial result,
+    * in order, by a separate thread. It may be null.
+    */
+   public Object listener;
+   /**
+    * The constructor creates the invoker.
+    * @param items The objects to which each invocation is to be sent, local,
+    * remote, or even proxies
+    * @param reducer The combining of the results
+    */
+   public ScatterGather(Object items[], Reducer reducer) {
+      this.items = items;
+      this.reducer = reducer;
+      required = items.length;
+   }
+   /**
+    * This method queues a partial result for the listener. A single thread
+    * per invocation calls it, in order, so a slow listener cannot hold up
+    * the gathering of the results.
+    */
+   private void partial(final LinkedList partials, Object total, int count) {
+      if (total instanceof Collection) total = new ArrayList((Collection)total);
+      synchronized(partials) {
+         partials.add(new Object[] { total, new Integer(count) });
+         if (partials.size() > 1) return; // the notifier is running
+      }
+      Thread notifier = new Thread() {
+         public void run() {
+            Object partial;
+            synchronized(partials) { partial = partials.getFirst(); }
+            while(true) {
+               try { Remote.invoke(listener, "partial", partial); }
+               catch(Exception x) { x.printStackTrace(); }
+               synchronized(partials) {
+                  partials.removeFirst();
+                  if (partials.isEmpty()) return;
+                  partial = partials.getFirst();
+               }
+            }
+         }
+      };
+      notifier.setDaemon(true);
+      notifier.start();
+   }
+   /**
+    * This method sends the invocation to all of the objects, and combines
+    * their results. <i>Note:</i> this method can be called reentrantly.
+    * @param method The objects' public method being called.
+    * @param args The arguments to pass to the method.
+    * @return The combined result of the invocations.
+    * @throws java.rmi.RemoteException If fewer than the required number of
+    * objects responded in time, and none failed.
+    * @throws Exception The first exception thrown by any of the objects, if
+    * fewer than the required number of objects responded successfully.
+    */
+   public Object invoke(final String method, final Object args)
+      throws Exception {
+      final Object state[] = new Object[2]; // the total, and first failure
+      final int counts[] = new int[3]; // successes, failures, finished
+      final LinkedList partials = new LinkedList(); // for the listener
+      for (int i = 0; i < items.length; i++) {
+         final Object item = items[i];
+         Thread thread = new Thread() {
+            public void run() {
+               Object result = null;
+               Exception error = null;
+               try { result = Remote.invoke(item, method, args); }
+               catch(Exception x) { error = x; }
+               synchronized(counts) {
+                  if (counts[2] != 0) return; // too late
+                  if (error != null) {
+                     counts[1]++;
+                     if (state[1] == null) state[1] = error;
+                  } else {
+                     counts[0]++;
+                     if (result != null) {
+                        state[0] = reducer.reduce(state[0], result);
+                        if (listener != null)
+                           partial(partials, state[0], counts[0]);
+                     }
+                  }
+                  counts.notify();
+               }
+            }
+         };
+         thread.setDaemon(true);
+         thread.start();
+      }
+      long deadline = System.currentTimeMillis() + timeout;
+      synchronized(counts) {
+         for (long wait = timeout; wait > 0 &&
+            counts[0] + counts[1] < items.length &&
+            items.length - counts[1] >= required &&
+            !(state[0] != null && reducer.complete(state[0]));
+            wait = deadline - System.currentTimeMillis()) counts.wait(wait);
+         counts[2] = 1; // ignore any further results
+         if (counts[0] < required && !(state[0] != null &&
+            reducer.complete(state[0]))) {
+            if (state[1] != null) throw (Exception)state[1];
+            throw new java.rmi.RemoteException("Only " + counts[0] + " of " +
+               items.length + " responded in time");
+         }
+         return state[0];
+      }
+   }
+}
@@ -0,0 +1,432 @@
+package gnu.cajo.utils.extra;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.rmi.server.RMIClientSocketFactory;
+import java.rmi.server.RMIServerSocketFactory;
+import java.rmi.server.RMISocketFactory;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Shared Memory Socket Factory
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file ShmSocketFactory.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used to communicate with items in other JVMs on the same
+ * host, through shared memory, rather than TCP loopback. It is both the
+ * server and client socket factory of a {@link gnu.cajo.invoke.Remote
+ * Remote} item, provided to its fully configurable constructor:<p>
+ * <blockquote><tt>
+ * ShmSocketFactory ssf = new ShmSocketFactory(null);<br>
+ * Remote remote = new Remote(item, port, ssf, ssf);</tt></blockquote><p>
+ * The server accepts TCP connections as usual, and also listens in a
+ * directory named for its port, under <tt>/dev/shm</tt> where available.
+ * A client on the same host connects by creating a file there, which both
+ * JVMs map into memory, holding a ring buffer for each direction. Clients
+ * on other hosts, or when the server's directory is absent, abandoned, or
+ * not writable by the client, connect by TCP; as do all, on JVMs providing
+ * no full memory fence, needed to order access to the shared memory. The
+ * directory is accessible only to the user running the server, so clients
+ * of other users also connect by TCP, and cannot map the traffic of a
+ * connection. Since RMI reuses its connections, the setting up of a
+ * connection through the directory is infrequent; the invocations over it
+ * then require no system calls, unless a side has to wait; each read or
+ * write costs two fences, invoked reflectively.<p>
+ * Each side holds a file lock while connected; a side waiting on the other
+ * checks the lock periodically, and treats a lost lock as the connection
+ * being closed.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class ShmSocketFactory
+   implements RMIServerSocketFactory, RMIClientSocketFactory, Serializable {
+   private static final long serialVersionUID = 1L;
+   private static final int CAPACITY = 0x40000; // bytes, in each direction
+   private static final int DATA = 192; // the header: head, tail, closed
+   private static final int RING = DATA + CAPACITY;
+   private static final HashSet served = new HashSet(); // ports in this JVM
+   private static final Random random = new Random();
+   private static Method fence;
+   private static Object unsafe;
+   static { // a full memory fence, where the JVM provides one
+      try {
+         fence = Class.forName("java.lang.invoke.VarHandle").
+            getMethod("fullFence", new Class[0]);
+      } catch(Exception x) {
+         try {
+            Class c = Class.forName("sun.misc.Unsafe");
+            Field f = c.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = f.get(null);
+            fence = c.getMethod("fullFence", new Class[0]);
+         } catch(Exception y) { fence = null; }
+      }
+   }
+   private static void fence() { // order accesses to the shared memory
+      // the Method is resolved once; once inflated, invoking it costs about
+      // as much as the fence itself, so reads and writes use two at most
+      try { fence.invoke(unsafe, (Object[])null); } // found, else only TCP
+      catch(Exception x) { throw new IllegalStateException("Fence: " + x); }
+   }
+   private static File directory(int port) {
+      File shm = new File("/dev/shm");
+      return new File(shm.isDirectory() ? shm :
+         new File(System.getProperty("java.io.tmpdir")), "cajo-" + port);
+   }
+   private static boolean alive(FileChannel channel) throws IOException {
+      try {
+         FileLock lock = channel.tryLock(0, 1, false);
+         if (lock == null) return true; // held by another JVM
+         lock.release();
+         return false;
+      } catch(OverlappingFileLockException x) { return true; } // by this one
+   }
+   private static final class Ring { // one direction of a connection
+      private final MappedByteBuffer buffer;
+      private final int base;
+      private final Connection connection;
+      private Ring(Connection connection, int base) {
+         this.connection = connection;
+         this.buffer = connection.buffer;
+         this.base = base;
+      }
+      private long get(int field) { // acquire, later accesses follow it
+         long value = buffer.getLong(base + field);
+         fence();
+         return value;
+      }
+      private long peek(int field) { // unordered, e.g. its own index
+         return buffer.getLong(base + field);
+      }
+      private void put(int field, long value) { // release, earlier precede
+         fence();
+         buffer.putLong(base + field, value);
+      }
+      private void await(int waited) throws IOException { // back off
+         if (waited < 100) Thread.yield();
+         else {
+            LockSupport.parkNanos(Math.min(waited * 500L, 1000000L));
+            if (Thread.interrupted()) throw new InterruptedIOException();
+            if (waited % 1000 == 0 && !connection.peerAlive())
+               put(128, 1); // the other side has gone
+         }
+      }
+   }
+   private static final class Input extends InputStream {
+      private final Ring ring;
+      private Input(Ring ring) { this.ring = ring; }
+      public int read() throws IOException {
+         byte b[] = new byte[1];
+         return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+      }
+      public int read(byte b[], int off, int len) throws IOException {
+         if (len == 0) return 0;
+         long head, tail = ring.peek(64); // only written by this side
+         for (int waited = 0; (head = ring.get(0)) == tail; waited++) {
+            if (ring.peek(128) != 0) return -1;
+            ring.await(waited);
+         }
+         int start = (int)(tail % CAPACITY);
+         int n = (int)Math.min(Math.min(len, head - tail), CAPACITY - start);
+         synchronized(ring.buffer) {
+            ring.buffer.position(ring.base + DATA + start);
+            ring.buffer.get(b, off, n);
+         }
+         ring.put(64, tail + n);
+         return n;
+      }
+      public int available() throws IOException {
+         return (int)(ring.get(0) - ring.peek(64));
+      }
+      public void close() throws IOException { ring.connection.close(); }
+   }
+   private static final class Output extends OutputStream {
+      private final Ring ring;
+      private Output(Ring ring) { this.ring = ring; }
+      public void write(int b) throws IOException {
+         write(new byte[] { (byte)b }, 0, 1);
+      }
+      public void write(byte b[], int off, int len) throws IOException {
+         while(len > 0) {
+            long head = ring.peek(0), tail; // only written by this side
+            for (int waited = 0; head - (tail = ring.get(64)) == CAPACITY;
+               waited++) {
+               if (ring.peek(128) != 0) throw new SocketException("Closed");
+               ring.await(waited);
+            }
+            if (ring.peek(128) != 0) throw new SocketException("Closed");
+            int start = (int)(head % CAPACITY);
+            int n = (int)Math.min(Math.min(len, CAPACITY - (head - tail)),
+               CAPACITY - start);
+            synchronized(ring.buffer) {
+               ring.buffer.position(ring.base + DATA + start);
+               ring.buffer.put(b, off, n);
+            }
+            ring.put(0, head + n);
+            off += n;
+            len -= n;
+         }
+      }
+      public void close() throws IOException { ring.connection.close(); }
+   }
+   private static final class Connection extends Socket {
+      private final RandomAccessFile file;
+      private final MappedByteBuffer buffer;
+      private final FileChannel peer; // locked by the other side
+      private final Input in;
+      private final Output out;
+      private final int port;
+      private boolean closed;
+      private Connection(File file, boolean client, FileChannel peer, int port)
+         throws IOException {
+         this.file = new RandomAccessFile(file, "rw");
+         try {
+            if (client) this.file.setLength(RING * 2);
+            buffer = this.file.getChannel().
+               map(FileChannel.MapMode.READ_WRITE, 0, RING * 2);
+            if (client) this.file.getChannel().lock(0, 1, false);
+         } catch(IOException x) {
+            this.file.close();
+            throw x;
+         }
+         this.peer = peer != null ? peer : this.file.getChannel();
+         this.port = port;
+         in  = new Input(new Ring(this, client ? RING : 0));
+         out = new Output(new Ring(this, client ? 0 : RING));
+      }
+      private boolean peerAlive() {
+         try { return alive(peer); }
+         catch(IOException x) { return false; }
+      }
+      public InputStream getInputStream() { return in; }
+      public OutputStream getOutputStream() { return out; }
+      public InetAddress getInetAddress() {
+         try { return InetAddress.getByName("127.0.0.1"); }
+         catch(UnknownHostException x) { return null; }
+      }
+      public int getPort() { return port; }
+      public boolean isConnected() { return true; }
+      public synchronized boolean isClosed() { return closed; }
+      public void setTcpNoDelay(boolean on) {}
+      public void setKeepAlive(boolean on) {}
+      public void setSoTimeout(int timeout) {}
+      public int getSoTimeout() { return 0; }
+      public int getLocalPort() { return -1; }
+      public synchronized void close() throws IOException {
+         if (closed) return;
+         closed = true;
+         out.ring.put(128, 1);
+         in.ring.put(128, 1);
+         if (peer != file.getChannel()) peer.close();
+         file.close(); // releases this side's lock
+      }
+   }
+   private static final class Server extends ServerSocket {
+      private final ServerSocket tcp;
+      private final File directory;
+      private final RandomAccessFile lock;
+      private final LinkedList accepted = new LinkedList();
+      private final int port;
+      private boolean closed;
+      private Server(ServerSocket tcp) throws IOException {
+         this.tcp = tcp;
+         port = tcp.getLocalPort();
+         directory = directory(port);
+         directory.mkdirs();
+         if (!(directory.setReadable(false, false) &&
+            directory.setReadable(true, true) &&
+            directory.setWritable(false, false) &&
+            directory.setWritable(true, true) &&
+            directory.setExecutable(false, false) &&
+            directory.setExecutable(true, true))) // e.g. of another user
+            throw new IOException("Directory not private: " + directory);
+         lock = new RandomAccessFile(new File(directory, "lock"), "rw");
+         if (lock.getChannel().tryLock() == null)
+            throw new BindException("Directory in use: " + directory);
+         File stale[] = directory.listFiles();
+         for (int i = 0; i < stale.length; i++)
+            if (!stale[i].getName().equals("lock")) stale[i].delete();
+         synchronized(served) { served.add(new Integer(port)); }
+         Thread thread = new Thread() { // accept by TCP
+            public void run() {
+               try { while(true) add(Server.this.tcp.accept()); }
+               catch(IOException x) { add(x); }
+            }
+         };
+         thread.setDaemon(true);
+         thread.start();
+         thread = new Thread() { // accept through the directory
+            public void run() {
+               try {
+                  for (long idle = 1; !isClosed(); Thread.sleep(idle)) {
+                     String names[] = directory.list();
+                     idle = Math.min(idle * 2, 10);
+                     for (int i = 0; names != null && i < names.length; i++)
+                        if (names[i].endsWith(".req")) {
+                           idle = 1;
+                           File req = new File(directory, names[i]);
+                           File ring = new File(directory,
+                              names[i].replaceAll("req$", "ring"));
+                           if (req.renameTo(ring)) try {
+                              add(new Connection(ring, false, null, 0));
+                           } catch(IOException x) { // the client gave up
+                           } finally { ring.delete(); } // it is mapped
+                        }
+                  }
+               } catch(InterruptedException x) {}
+            }
+         };
+         thread.setDaemon(true);
+         thread.start();
+      }
+      private synchronized void add(Object o) {
+         accepted.add(o);
+         notifyAll();
+      }
+      public synchronized Socket accept() throws IOException {
+         try {
+            while(!closed && accepted.isEmpty()) wait();
+         } catch(InterruptedException x) {
+            throw new InterruptedIOException();
+         }
+         if (closed) throw new SocketException("Socket closed");
+         Object o = accepted.removeFirst();
+         if (o instanceof IOException) throw (IOException)o;
+         if (o instanceof Exception) throw new IOException(o.toString());
+         return (Socket)o;
+      }
+      public int getLocalPort() { return port; }
+      public InetAddress getInetAddress() { return tcp.getInetAddress(); }
+      public synchronized boolean isClosed() { return closed; }
+      public void close() throws IOException {
+         synchronized(this) {
+            if (closed) return;
+            closed = true;
+            notifyAll();
+         }
+         synchronized(served) { served.remove(new Integer(port)); }
+         tcp.close();
+         lock.close();
+         File files[] = directory.listFiles();
+         for (int i = 0; files != null && i < files.length; i++)
+            files[i].delete();
+         directory.delete();
+      }
+   }
+   /**
+    * The network interface on which the server accepts TCP connections, if
+    * null, all of them.
+    */
+   public final String host;
+   /**
+    * The constructor creates the factory.
+    * @param host The network interface on which the server is to accept
+    * TCP connections, if null, it will accept them on all interfaces
+    */
+   public ShmSocketFactory(String host) { this.host = host; }
+   /**
+    * This method creates the server socket, accepting both TCP connections,
+    * and connections through shared memory. It is called by the RMI
+    * runtime, and is not intended to be called directly.
+    * @param port The TCP port, if 0 an anonymous one is chosen
+    * @return The server socket
+    * @throws IOException If the port, or its directory, is in use
+    */
+   public ServerSocket createServerSocket(int port) throws IOException {
+      ServerSocket tcp = host == null ? new ServerSocket(port) :
+         new ServerSocket(port, 50, InetAddress.getByName(host));
+      if (fence == null) return tcp; // the memory cannot be shared safely
+      try { return new Server(tcp); }
+      catch(IOException x) {
+         tcp.close();
+         throw x;
+      }
+   }
+   /**
+    * This method connects to a server, through shared memory if it is on
+    * the same host, and is listening; otherwise by TCP. It is called by the
+    * RMI runtime, and is not intended to be called directly.
+    * @param host The server host
+    * @param port The server TCP port
+    * @return The socket connected to the server
+    * @throws IOException If the server could not be reached
+    */
+   public Socket createSocket(String host, int port) throws IOException {
+      InetAddress address = InetAddress.getByName(host);
+      File directory = directory(port);
+      File lock = new File(directory, "lock");
+      if (fence != null && (address.isLoopbackAddress() ||
+         NetworkInterface.getByInetAddress(address) != null) && lock.exists()) {
+         FileChannel server = null;
+         File tmp = null;
+         try {
+            boolean local;
+            synchronized(served) {
+               local = served.contains(new Integer(port));
+            }
+            if (!local) { // check the server is still running, in another JVM
+               server = new RandomAccessFile(lock, "rw").getChannel();
+               if (!alive(server)) {
+                  server.close();
+                  server = null;
+               }
+            }
+            if (local || server != null) {
+               String name;
+               synchronized(random) {
+                  name = Long.toHexString(random.nextLong());
+               }
+               tmp = new File(directory, name + ".tmp");
+               Connection c = new Connection(tmp, true, server, port);
+               server = null; // closed with the connection
+               if (tmp.renameTo(new File(directory, name + ".req"))) return c;
+               c.close();
+            }
+         } catch(IOException x) { // e.g. the directory is not writable
+         } finally {
+            if (server != null) try { server.close(); }
+            catch(IOException x) {}
+         }
+         if (tmp != null) tmp.delete();
+      }
+      return RMISocketFactory.getDefaultSocketFactory().
+         createSocket(host, port);
+   }
+   public boolean equals(Object o) {
+      return o instanceof ShmSocketFactory && (host == null ?
+         ((ShmSocketFactory)o).host == null :
+            host.equals(((ShmSocketFactory)o).host));
+   }
+   public int hashCode() {
+      return getClass().hashCode() ^ (host != null ? host.hashCode() : 0);
+   }
+}
@@ -0,0 +1,215 @@
+package gnu.cajo.utils.extra;
+
+import gnu.cajo.Service;
+import gnu.cajo.invoke.Remote;
+import java.rmi.RemoteException;
+import java.util.LinkedList;
+
+/*
+ * Distributed Task Farm
+ * Copyright (c) 2010 John Catherino
+ * The cajo project: https://cajo.dev.java.net
+ *
+ * For issues or suggestions mailto:cajo@dev.java.net
+ *
+ * This file TaskFarm.java is part of the cajo library.
+ *
+ * The cajo library is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public Licence as published
+ * by the Free Software Foundation, at version 3 of the licence, or (at your
+ * option) any later version.
+ *
+ * The cajo library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU Lesser General Public Licence for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public Licence
+ * along with this library. If not, see http://www.gnu.org/licenses/lgpl.html
+ */
+
+/**
+ * This class is used to run a job, divided into tasks, across a group of
+ * {@link gnu.cajo.Service Service} objects; typically the results of a
+ * {@link gnu.cajo.Cajo#lookup Cajo lookup}. Each task is a {@link Task Task}
+ * proxy, sent to a service by its {@link gnu.cajo.Service#sendProxy
+ * sendProxy} method, to run in the service's JVM. The results of the tasks
+ * are combined, as they complete, by a {@link ScatterGather.Reducer
+ * Reducer}.<p>
+ * The tasks wait on a single queue, from which each service takes its next
+ * task when it finishes the previous one; faster services therefore take
+ * more of the tasks. When the queue is empty, idle services take a copy of
+ * the longest running unfinished task, so that a slow service does not hold
+ * up the job; whichever copy finishes first is used. If a service cannot
+ * be reached, with a RemoteException, or does not accept proxies, it is
+ * dropped from the job, and its task is returned to the queue, to be
+ * retried elsewhere. Any other exception, e.g. an IOException of the task
+ * itself, fails the job.<p>
+ * A service would typically implement sendProxy as follows:<p>
+ * <blockquote><tt>
+ * public Object sendProxy(Proxy proxy) {<br>
+ * &nbsp;&nbsp;proxy.init(this);<br>
+ * &nbsp;&nbsp;return new Remote(proxy);<br>
+ * }</tt></blockquote><p>
+ * <i>Note:</i> the task classes must be available to the service JVMs,
+ * typically through the codebase of the job's JVM.
+ *
+ * @version 1.0, 07-Dec-10 Initial release
+ * @author John Catherino
+ */
+public final class TaskFarm {
+   /**
+    * This interface defines a task of a job. The task is initialised with
+    * a local reference to the service on its arrival, and performs its work
+    * when its result is requested.
+    */
+   public interface Task extends Service.Proxy {
+      /**
+       * This method performs the task, in the service JVM.
+       * @return The result of the task, it may be null
+       * @throws Exception If the task failed, the job fails
+       */
+      Object result() throws Exception;
+   }
+   private final class Job { // the state of a running job
+      private final Task tasks[];
+      private final ScatterGather.Reducer reducer;
+      private final LinkedList queue = new LinkedList();
+      private final int copies[], attempts[];
+      private final long started[];
+      private final boolean done[];
+      private int remaining, workers;
+      private Object total;
+      private Exception failure;
+      private Job(Task tasks[], ScatterGather.Reducer reducer) {
+         this.tasks = tasks;
+         this.reducer = reducer;
+         copies = new int[tasks.length];
+         attempts = new int[tasks.length];
+         started = new long[tasks.length];
+         done = new boolean[tasks.length];
+         remaining = tasks.length;
+         for (int i = 0; i < tasks.length; i++) queue.add(new Integer(i));
+      }
+      private synchronized int next() throws InterruptedException {
+         while(remaining > 0 && failure == null) {
+            int task = -1;
+            if (!queue.isEmpty())
+               task = ((Integer)queue.removeFirst()).intValue();
+            else for (int i = 0; i < tasks.length; i++) // find a straggler
+               if (!done[i] && copies[i] == 1 &&
+                  (task == -1 || started[i] < started[task])) task = i;
+            if (task != -1) {
+               if (copies[task]++ == 0)
+                  started[task] = System.currentTimeMillis();
+               return task;
+            }
+            wait(); // for a task to finish, or be returned to the queue
+         }
+         return -1;
+      }
+      private synchronized void finished(int task, Object result) {
+         copies[task]--;
+         if (done[task]) return; // another copy finished first
+         done[task] = true;
+         remaining--;
+         if (result != null) total = reducer.reduce(total, result);
+         notifyAll();
+      }
+      private synchronized void failed(int task, Exception x, boolean node) {
+         copies[task]--;
+         if (!node) failure = x;
+         else {
+            if (!done[task] && copies[task] == 0) {
+               if (++attempts[task] > retries) failure = x;
+               else queue.addFirst(new Integer(task));
+            }
+            if (--workers == 0 && remaining > 0 && failure == null)
+               failure = new java.rmi.ConnectException("No services remaining");
+         }
+         notifyAll();
+      }
+   }
+   /**
+    * The services on which the tasks are run.
+    */
+   public final Object services[];
+   /**
+    * The number of tasks each service runs at a time. By default it is 1.
+    */
+   public int slots = 1;
+   /**
+    * The number of times a task is retried on another service, when the
+    * service running it fails. By default it is 3.
+    */
+   public int retries = 3;
+   /**
+    * The constructor creates the farm.
+    * @param services The references to the services, local or remote,
+    * on which to run the tasks
+    */
+   public TaskFarm(Object services[]) { this.services = services; }
+   private void work(final Job job, final Object service) {
+      Thread thread = new Thread() {
+         public void run() {
+            try {
+               for (int task; (task = job.next()) != -1;) {
+                  Object result;
+                  try {
+                     Object proxy = Remote.invoke(
+                        service, "sendProxy", job.tasks[task]);
+                     result = Remote.invoke(proxy, "result", null);
+                  } catch(RemoteException x) { // by the transport
+                     job.failed(task, x, true);
+                     return;
+                  } catch(ClassNotFoundException x) { // proxies not accepted
+                     job.failed(task, x, true);
+                     return;
+                  } catch(NoSuchMethodException x) { // not a service
+                     job.failed(task, x, true);
+                     return;
+                  } catch(Exception x) {
+                     job.failed(task, x, false);
+                     return;
+                  }
+                  job.finished(task, result);
+               }
+            } catch(InterruptedException x) {}
+         }
+      };
+      thread.setDaemon(true);
+      thread.start();
+   }
+   /**
+    * This method runs a job, and combines the results of its tasks. Any
+    * copies of tasks still running when it returns are abandoned, and their
+    * results ignored. <i>Note:</i> this method can be called reentrantly.
+    * @param tasks The tasks of the job
+    * @param reducer The combining of the results of the tasks
+    * @return The combined result, null if no task returned a result
+    * @throws java.rmi.ConnectException If all of the services have failed
+    * before the job was completed
+    * @throws Exception The exception thrown by a failing task, or the last
+    * failure of a service running a task which exhausted its retries
+    */
+   public Object run(Task tasks[], ScatterGather.Reducer reducer)
+      throws Exception {
+      Job job = new Job(tasks, reducer);
+      synchronized(job) {
+         job.workers = services.length * slots;
+         if (job.workers == 0 && tasks.length > 0)
+            throw new java.rmi.ConnectException("No services provided");
+      }
+      for (int i = 0; i < services.length; i++)
+         for (int j = 0; j < slots; j++) work(job, services[i]);
+      synchronized(job) {
+         while(job.remaining > 0 && job.failure == null) job.wait();
+         if (job.failure != null) {
+            job.remaining = 0; // stop the workers
+            job.notifyAll();
+            throw job.failure;
+         }
+         return job.total;
+      }
+   }
+}
@@ -1,12 +1,20 @@
 package gnu.cajo.utils.extra;
 
 import gnu.cajo.invoke.Remote;
+import gnu.cajo.invoke.Invoke;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.lang.reflect.InvocationHandler;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.WeakHashMap;
 import java.rmi.RemoteException;
+import java.rmi.ConnectException;
 import java.rmi.NotBoundException;
 import java.net.MalformedURLException;
 import java.util.concurrent.Future;
@@ -72,6 +80,67 @@ import java.lang.reflect.InvocationTargetException;
  * invocation is completed. You can then peridocally check to see if it is
  * done, and extract the result.
  *
+ * <p><hr><br><b>Update:</b> Tail latency protection<br>
+ * A proxy can be created over a set of equivalent replicas, using the
+ * {@link #getItem(Object[], Class[]) array} form of getItem. Ordinarily,
+ * invocations go to the first replica whose circuit breaker is closed. If
+ * the client interface declares a constant <tt>String IDEMPOTENT[]</tt>,
+ * listing the names of methods safe to invoke more than once, those methods
+ * will be <i>hedged:</i> when the first replica is slower than the
+ * {@link #hedgePercentile hedgePercentile} of recent invocations, the call
+ * is also sent to a second replica, and whichever answer arrives first is
+ * used. Circuit breakers are enabled by assigning a non-zero
+ * {@link #breakerThreshold breakerThreshold}; calls to a replica which has
+ * failed repeatedly will then fail fast, rather than wait on a TCP timeout.
+ *
+ * <p><hr><br><b>Update:</b> Near caching<br>
+ * If the client interface declares a constant <tt>String CACHEABLE[]</tt>,
+ * listing the names of read-only methods, their results will be kept
+ * locally, keyed by the values of their arguments; repeated invocations
+ * will then not go to the server at all. To remain consistent, the server
+ * must push invalidations to the proxy, when its state changes. On the
+ * first cacheable invocation the proxy calls
+ * <tt>addInvalidationListener</tt> on its item, and on each of its
+ * replicas, with a remote callback reference; a {@link MemoItem MemoItem}
+ * wrapping the server object supports this. If the item does not, the
+ * methods are simply not cached. As a push may be lost, the listener is
+ * registered again every {@link #nearCacheCheck nearCacheCheck}
+ * milliseconds; if it had been dropped meanwhile, the near cache is
+ * discarded.
+ * <i>Note:</i> cached results are shared between callers, they must not
+ * be modified.
+ *
+ * <p><hr><br><b>Update:</b> Request coalescing<br>
+ * When {@link #coalesce coalesce} is set, concurrent invocations of an
+ * idempotent method, with equal arguments, made through the same proxy,
+ * will result in only one invocation being sent; its result or exception
+ * will be provided to all of the waiting callers. The
+ * {@link CoalescingItem CoalescingItem} class provides the same function
+ * on the server side.
+ *
+ * <p><hr><br><b>Update:</b> Call batching<br>
+ * If the client interface declares a constant <tt>String BATCHED[]</tt>,
+ * listing the names of void methods, their invocations will return
+ * immediately. They are held for up to {@link #batchTime batchTime}
+ * milliseconds, or until {@link #batchSize batchSize} have accumulated, and
+ * then sent to the server as a single invocation, in their original order.
+ * Any other invocation on the proxy first sends the held invocations, to
+ * preserve ordering. The server accepts batches by remoting its object
+ * wrapped in a {@link BatchItem BatchItem}; if it does not, the held
+ * invocations are sent individually. As the caller has already returned,
+ * failures of batched invocations are passed to the {@link #handler
+ * handler}, if assigned. <i>Note:</i> the arguments of batched methods
+ * must be serialisable.
+ *
+ * <p><hr><br><b>Update:</b> One-way invocations<br>
+ * If the client interface declares a constant <tt>String ONEWAY[]</tt>,
+ * listing the names of void methods, their invocations will return as soon
+ * as they are queued; they are sent in order, by a {@link OneWay OneWay}
+ * dispatcher; as batches, if the server object is wrapped in a BatchItem.
+ * Failures are passed to the {@link #handler handler}, if assigned.
+ * <i>Note:</i> a subsequent synchronous invocation on the proxy
+ * may arrive at the server before pending one-way invocations.
+ *
  * @author John Catherino
  */
 public final class TransparentItemProxy implements
@@ -124,15 +193,385 @@ public final class TransparentItemProxy implements
          return result;
       }
    }
+   private static final class Breaker { // per target circuit breaker
+      private int failures;
+      private long retry;
+      private synchronized boolean allow() {
+         if (failures < breakerThreshold) return true;
+         long now = System.currentTimeMillis();
+         if (now < retry) return false;
+         retry = now + breakerTimeout; // half open: admit one trial call
+         return true;
+      }
+      private synchronized void success() { failures = 0; }
+      private synchronized void failure() {
+         if (++failures >= breakerThreshold)
+            retry = System.currentTimeMillis() + breakerTimeout;
+      }
+   }
+   private final class Race { // hedged invocation helper
+      private Object result;
+      private Throwable error;
+      private int running;
+      private boolean done;
+      private synchronized void start(final Object target,
+         final String name, final Object args[]) {
+         running++;
+         Thread thread = new Thread() {
+            public void run() {
+               Object r = null;
+               Throwable t = null;
+               try { r = call(target, name, args); }
+               catch(Throwable x) { t = x; }
+               finish(r, t);
+            }
+         };
+         thread.setDaemon(true);
+         thread.start();
+      }
+      private synchronized void finish(Object r, Throwable t) {
+         running--;
+         if (done) return;
+         if (t == null || !(t instanceof IOException)) { // got an answer
+            result = r;
+            error  = t;
+            done   = true;
+         } else error = t; // network failure, another replica may answer
+         notifyAll();
+      }
+   }
+   private final class Listener { // receives pushed invalidations
+      public void invalidate(String method, Object prefix) {
+         synchronized(TransparentItemProxy.this) {
+            epoch++;
+            if (near == null) return;
+            if (method == null) near.clear();
+            else for (Iterator i = near.keySet().iterator(); i.hasNext();)
+               if (((Invocation)i.next()).startsWith(method, prefix))
+                  i.remove();
+         }
+      }
+   }
+   private static final WeakHashMap breakers = new WeakHashMap();
+   private static final HashMap marks = new HashMap();
    private Object item;
+   private Object items[];
    private String toString;
+   private transient HashMap latencies;
+   private transient LinkedHashMap near;
+   private transient Object listener, exported; // registered, and remoted
+   private transient long subscribed; // when the listener was registered
+   private transient long epoch;
+   private transient CoalescingItem coalescer;
+   private transient java.util.LinkedList batch;
+   private transient Object batchLock;
+   private transient Thread flusher;
+   private transient boolean unbatched;
+   private transient OneWay oneWay;
    private void writeObject(java.io.ObjectOutputStream out)
       throws java.io.IOException {
       if (!(item instanceof Serializable))
          item = new Remote(item).clientScope();
+      if (items != null) for (int i = 0; i < items.length; i++)
+         if (!(items[i] instanceof Serializable))
+            items[i] = i == 0 ? item : new Remote(items[i]).clientScope();
       out.defaultWriteObject();
    }
    private TransparentItemProxy(Object item) { this.item = item; }
+   private TransparentItemProxy(Object items[]) {
+      this.item  = items[0];
+      this.items = items.length > 1 ? items.clone() : null;
+   }
+   /**
+    * This method checks if a method has been marked by the client, in an
+    * interface constant of type String[], listing method names.
+    */
+   private static boolean isMarked(Method method, String list) {
+      Class c = method.getDeclaringClass();
+      HashSet names;
+      synchronized(marks) {
+         HashMap lists = (HashMap)marks.get(c);
+         if (lists == null) {
+            lists = new HashMap();
+            marks.put(c, lists);
+         }
+         names = (HashSet)lists.get(list);
+         if (names == null) {
+            names = new HashSet();
+            try { names.addAll(Arrays.asList((String[])c.getField(list).
+               get(null)));
+            } catch(Exception x) {} // not marked
+            lists.put(list, names);
+         }
+      }
+      return names.contains(method.getName());
+   }
+   /**
+    * This method invokes a single target, updating its circuit breaker, and
+    * the latency record of the method.
+    */
+   private Object call(Object target, String name, Object args[])
+      throws Exception {
+      Breaker breaker = null;
+      if (breakerThreshold > 0) synchronized(breakers) {
+         breaker = (Breaker)breakers.get(target);
+         if (breaker == null) {
+            breaker = new Breaker();
+            breakers.put(target, breaker);
+         }
+      }
+      if (breaker != null && !breaker.allow())
+         throw new ConnectException("Circuit open to " + target);
+      long time = System.currentTimeMillis();
+      Object result;
+      try { result = Remote.invoke(target, name, args); }
+      catch(IOException x) {
+         if (breaker != null) breaker.failure();
+         throw x;
+      }
+      if (breaker != null) breaker.success();
+      if (items != null) sample(name, System.currentTimeMillis() - time);
+      return result;
+   }
+   /**
+    * This method records the latency of a successful invocation, keeping
+    * the most recent 64 samples per method.
+    */
+   private synchronized void sample(String name, long time) {
+      if (latencies == null) latencies = new HashMap();
+      long samples[] = (long[])latencies.get(name);
+      if (samples == null) {
+         samples = new long[65]; // the last element is the sample count
+         latencies.put(name, samples);
+      }
+      samples[(int)(samples[64]++ % 64)] = time;
+   }
+   /**
+    * This method returns the delay, after which a method invocation is to
+    * be hedged, or -1 if too few invocations have been sampled to tell.
+    */
+   private synchronized long hedgeDelay(String name) {
+      long samples[] = latencies != null ? (long[])latencies.get(name) : null;
+      if (samples == null || samples[64] < 16) return -1;
+      int count = samples[64] < 64 ? (int)samples[64] : 64;
+      long sorted[] = new long[count];
+      System.arraycopy(samples, 0, sorted, 0, count);
+      Arrays.sort(sorted);
+      int percentile = Math.min(hedgePercentile, 100); // it is public
+      return sorted[(count - 1) * percentile / 100];
+   }
+   /**
+    * This method registers a listener for invalidations with the item, and
+    * all of its replicas, on the first cacheable invocation; and again once
+    * the check time has elapsed. It returns false if the item does not
+    * support invalidation listeners, or could not be reached. The listener
+    * is remoted only once; after a failure, the same one is registered
+    * again. If any target reports the listener was not registered, it may
+    * have missed invalidations, so the near cache is discarded.
+    */
+   private synchronized boolean subscribe() {
+      if (listener == NULL) return false;
+      long now = System.currentTimeMillis();
+      if (listener != null && now - subscribed < nearCacheCheck) return true;
+      listener = null;
+      try {
+         if (exported == null)
+            exported = new Remote(new Listener()).clientScope();
+         Object targets[] = items != null ? items : new Object[] { item };
+         boolean dropped = false;
+         for (int i = 0; i < targets.length; i++)
+            if (Boolean.TRUE.equals(Remote.invoke(targets[i],
+               "addInvalidationListener", exported))) dropped = true;
+         if (dropped) {
+            epoch++;
+            if (near != null) near.clear();
+         }
+         listener = exported;
+         subscribed = now;
+      } catch(NoSuchMethodException x) { listener = NULL; }
+      catch(Exception x) { return false; }
+      return listener != NULL;
+   }
+   /**
+    * This method answers an invocation from the near cache, if possible,
+    * otherwise it caches the result of the invocation.
+    */
+   private Object cached(boolean idempotent, String name, Object args[])
+      throws Throwable {
+      Invocation key = new Invocation(name, args);
+      long version;
+      synchronized(this) {
+         if (near == null) near = new LinkedHashMap(16, .75F, true) {
+            private static final long serialVersionUID = 1L;
+            protected boolean removeEldestEntry(java.util.Map.Entry eldest) {
+               return size() > nearCacheSize;
+            }
+         };
+         if (near.containsKey(key)) return near.get(key);
+         version = epoch;
+      }
+      Object result;
+      try { result = fetch(idempotent, name, args); }
+      catch(IOException x) { // pushes may have been lost, so start over
+         synchronized(this) {
+            epoch++;
+            near.clear();
+            listener = null;
+         }
+         throw x;
+      }
+      synchronized(this) { // do not cache if invalidated meanwhile
+         if (version == epoch) near.put(key, result);
+      }
+      return result;
+   }
+   /**
+    * This method routes an invocation through the near cache, if the
+    * method is cacheable, otherwise it fetches it.
+    */
+   private Object route(Method method, String name, Object args[])
+      throws Throwable {
+      boolean idempotent = isMarked(method, "IDEMPOTENT");
+      return nearCacheSize > 0 && isMarked(method, "CACHEABLE") &&
+         subscribe() ? cached(idempotent, name, args) :
+         fetch(idempotent, name, args);
+   }
+   /**
+    * This method combines concurrent equal invocations of an idempotent
+    * method, if enabled, otherwise it sends the invocation.
+    */
+   private Object fetch(boolean idempotent, String name, Object args[])
+      throws Throwable {
+      if (!coalesce || !idempotent) return send(idempotent, name, args);
+      synchronized(this) {
+         if (coalescer == null) coalescer = new CoalescingItem(new Invoke() {
+            private static final long serialVersionUID = 1L;
+            public Object invoke(String method, Object args)
+               throws Exception {
+               try { return send(true, method, (Object[])args); }
+               catch(Exception x) { throw x; }
+               catch(Throwable t) { throw new Exception(t); }
+            }
+         }, null);
+      }
+      return coalescer.invoke(name, args);
+   }
+   /**
+    * This method holds an invocation of a batched method, the batch is sent
+    * when full, or when its time window has elapsed.
+    */
+   private void defer(String name, Object args[]) {
+      boolean full;
+      synchronized(this) {
+         if (batch == null) {
+            batch = new java.util.LinkedList();
+            batchLock = new Object();
+         }
+         batch.add(name);
+         batch.add(args);
+         full = batch.size() >= batchSize * 2;
+         if (!full && flusher == null) {
+            flusher = new Thread() {
+               public void run() {
+                  try { sleep(batchTime); }
+                  catch(InterruptedException x) {}
+                  synchronized(TransparentItemProxy.this) { flusher = null; }
+                  flush();
+               }
+            };
+            flusher.setDaemon(true);
+            flusher.start();
+         }
+      }
+      if (full) flush();
+   }
+   /**
+    * This method sends all held invocations, in order, as a single batch if
+    * the item supports it, otherwise individually.
+    */
+   private void flush() {
+      Object lock;
+      synchronized(this) {
+         if (batch == null) return; // nothing was ever batched
+         lock = batchLock;
+      }
+      synchronized(lock) { // also waits for any batch being sent
+         Object list[];
+         synchronized(this) {
+            list = batch.toArray();
+            batch.clear();
+         }
+         if (list.length == 0) return;
+         String names[] = new String[list.length / 2];
+         Object args[]  = new Object[list.length / 2];
+         for (int i = 0; i < names.length; i++) {
+            names[i] = (String)list[i * 2];
+            args[i]  = list[i * 2 + 1];
+         }
+         if (!unbatched) try {
+            Object errors[] =
+               (Object[])send(false, "batch", new Object[] { names, args });
+            if (errors != null) for (int i = 0; i < errors.length; i++)
+               if (errors[i] != null)
+                  failed(names[i], args[i], (Throwable)errors[i]);
+            return;
+         } catch(NoSuchMethodException x) { unbatched = true; }
+         catch(Throwable t) {
+            for (int i = 0; i < names.length; i++)
+               failed(names[i], args[i], t);
+            return;
+         }
+         for (int i = 0; i < names.length; i++) // send individually
+            try { send(false, names[i], (Object[])args[i]); }
+            catch(Throwable t) { failed(names[i], args[i], t); }
+      }
+   }
+   /**
+    * This method reports the failure of an invocation, whose caller has
+    * already returned, to the handler, if assigned.
+    */
+   private void failed(String name, Object args, Throwable t) {
+      if (handler != null) try {
+         Remote.invoke(handler, "handle", new Object[] { item, name, args, t });
+      } catch(Exception x) { x.printStackTrace(); }
+      else t.printStackTrace();
+   }
+   /**
+    * This method sends an invocation to the item, or to its replicas, if
+    * the proxy was created with more than one.
+    */
+   private Object send(boolean idempotent, String name, Object args[])
+      throws Throwable {
+      if (items == null) return call(item, name, args);
+      if (hedgePercentile < 1 || !idempotent)
+         for (int i = 0; ; i++) try { return call(items[i], name, args); }
+         catch(ConnectException x) { // never delivered, try the next one
+            if (i == items.length - 1) throw x;
+         }
+      Race race = new Race();
+      long delay = hedgeDelay(name);
+      long start = System.currentTimeMillis();
+      int next = 1, hedges = 0;
+      race.start(items[0], name, args);
+      synchronized(race) {
+         while(!race.done) {
+            long wait = delay < 0 || hedges > 0 ? 0 :
+               start + delay - System.currentTimeMillis();
+            if (race.running == 0 || hedges == 0 && delay >= 0 && wait <= 0) {
+               if (next == items.length) {
+                  if (race.running == 0) break; // all replicas failed
+               } else {
+                  if (race.running > 0) hedges++;
+                  race.start(items[next++], name, args);
+                  continue;
+               }
+            }
+            race.wait(wait > 0 ? wait : 0);
+         }
+      }
+      if (race.error != null) throw race.error;
+      return race.result;
+   }
    /**
     * An optional centralised invocation error handler. If an invocation on
     * a remote object results in a checked or unchecked exception being thrown;
@@ -153,6 +592,54 @@ public final class TransparentItemProxy implements
     * a substitute result, or throw a hopefully more descriptive exception.
     */
    public static Object handler;
+   /**
+    * The percentile of recent invocation times, of a method declared
+    * idempotent, after which it will be hedged to a second replica. By
+    * default it is 95, a value of zero disables hedging, values above 100
+    * are taken as 100.
+    */
+   public static int hedgePercentile = 95;
+   /**
+    * The number of consecutive network failures, after which calls to a
+    * target will fail fast, with a java.rmi.ConnectException. By default it
+    * is zero, which disables circuit breakers.
+    */
+   public static int breakerThreshold;
+   /**
+    * The time in milliseconds, an open circuit breaker will wait, before
+    * allowing a single trial call through to its target. By default it is
+    * 30 seconds.
+    */
+   public static long breakerTimeout = 30000L;
+   /**
+    * The maximum number of results each proxy will keep in its near cache,
+    * for methods declared cacheable. By default it is 256, a value of zero
+    * disables near caching.
+    */
+   public static int nearCacheSize = 256;
+   /**
+    * The time in milliseconds after which a near caching proxy registers
+    * its invalidation listener again, to find if it has been dropped by
+    * the server, and may have missed invalidations. This bounds the time a
+    * stale result can be served. By default it is 10 seconds.
+    */
+   public static long nearCacheCheck = 10000L;
+   /**
+    * This flag indicates if concurrent equal invocations of idempotent
+    * methods, made through the same proxy, are to be combined. By default
+    * it is false.
+    */
+   public static boolean coalesce;
+   /**
+    * The maximum number of batched invocations to be held, before they are
+    * sent. By default it is 64, a value of one or less disables batching.
+    */
+   public static int batchSize = 64;
+   /**
+    * The time in milliseconds a batched invocation can be held, before it
+    * is sent. By default it is 10.
+    */
+   public static long batchTime = 10L;
    /**
     * This method, inherited from InvocationHandler, simply passes all object
     * method invocations on to the wrapped object, automatically and
@@ -171,8 +658,8 @@ public final class TransparentItemProxy implements
     * @throws Exception If the service object rejected the invocation, for
     * application specific reasons.
     */
-   public Object invoke(Object proxy, Method method, final Object args[])
-      throws Throwable {
+   public Object invoke(Object proxy, final Method method,
+      final Object args[]) throws Throwable {
       final String name = method.getName();
       if (args ==null || args.length == 0) {
          if (name.equals("toString")) { // attempt toString
@@ -204,11 +691,49 @@ public final class TransparentItemProxy implements
             args[2] instanceof Integer))
                throw new IllegalMonitorStateException(
                   "Cannot wait on transparent proxy object");
+      if (batchSize > 1 && method.getReturnType() == void.class &&
+         isMarked(method, "BATCHED")) {
+         defer(name, args);
+         return null;
+      } else flush();
+      if (method.getReturnType() == void.class && isMarked(method, "ONEWAY")) {
+         synchronized(this) {
+            if (oneWay == null) oneWay = new OneWay(new Invoke() {
+               private static final long serialVersionUID = 1L;
+               public Object invoke(String method, Object args)
+                  throws NoSuchMethodException {
+                  String names[] = null; // if it is a batch, from the OneWay
+                  Object list[] = null;
+                  if (method.equals("batch")) {
+                     names = (String[])((Object[])args)[0];
+                     list  = (Object[])((Object[])args)[1];
+                  }
+                  try {
+                     Object errors[] = (Object[])send(false, method,
+                        (Object[])args);
+                     if (names != null && errors != null)
+                        for (int i = 0; i < errors.length; i++)
+                           if (errors[i] != null)
+                              failed(names[i], list[i], (Throwable)errors[i]);
+                  } catch(NoSuchMethodException x) {
+                     if (names != null) throw x; // the OneWay sends singly
+                     failed(method, args, x);
+                  } catch(Throwable t) {
+                     if (names == null) failed(method, args, t);
+                     else for (int i = 0; i < names.length; i++)
+                        failed(names[i], list[i], t);
+                  }
+                  return null;
+               }
+            }, null);
+         }
+         return oneWay.invoke(name, args);
+      }
       if (Future.class.isAssignableFrom(method.getReturnType())) {
          final ProxyFuture future = new ProxyFuture();
          return future.setThread(new Thread() {
             public void run() {
-               try { future.result = Remote.invoke(item, name, args); }
+               try { future.result = route(method, name, args); }
                catch(Throwable t) {
                   if (handler != null) try {
                      future.result = Remote.invoke(handler,
@@ -220,7 +745,7 @@ public final class TransparentItemProxy implements
                } finally { future.done = true; }
             }
          });
-      } else try { return Remote.invoke(item, name, args); }
+      } else try { return route(method, name, args); }
       catch(Throwable t) {
          if (handler != null) return Remote.invoke(
             handler, "handle", new Object[] { item, name, args, t });
@@ -247,6 +772,25 @@ public final class TransparentItemProxy implements
       return Proxy.newProxyInstance(interfaces[0].getClassLoader(),
          interfaces, new TransparentItemProxy(item));
    }
+   /**
+    * This generates a class definition for a set of equivalent object
+    * references at runtime, and returns a local object instance. The
+    * resulting dynamic proxy object will implement all the interfaces
+    * provided. Invocations are sent to the first replica whose circuit
+    * breaker is closed; methods named in an <tt>IDEMPOTENT</tt> interface
+    * constant will be hedged to a second replica, when the first is slow.
+    * @param items References to equivalent replicas of an object, local or
+    * remote, in order of preference
+    * @param interfaces The list of interface classes for the dynamic proxy
+    * to implement. Typically, these are provided thus; <tt>new Class[] {
+    * Interface1.class, Interface2.class, ... }</tt>
+    * @return A reference to the provided objects, it can then be typecast
+    * into any of the interfaces, as needed by the client.
+    */
+   public static Object getItem(Object items[], Class interfaces[]) {
+      return Proxy.newProxyInstance(interfaces[0].getClassLoader(),
+         interfaces, new TransparentItemProxy(items));
+   }
    /**
     * This method fetches a server item reference, generates a class
     * definition for it at runtime, and returns a local object instance.